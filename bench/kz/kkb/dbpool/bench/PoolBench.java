@@ -0,0 +1,318 @@
+package kz.kkb.dbpool.bench;
+
+import kz.kkb.dbpool.ConnectionPool;
+import kz.kkb.dbpool.Histogram;
+import kz.kkb.dbpool.PoolConfig;
+import kz.kkb.dbpool.PoolData;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ * Бенчмарк горячего пути пула: getConnection() + close() против StubDriver.
+ * Замеряется пропускная способность и время выдачи+возврата (без времени работы с коннекцией).
+ *
+ * Параметры (все необязательны):
+ *   -threads 1,4,16,64,256   число потоков
+ *   -pool 8,64               размер пула (minSpareConn=maxConn)
+ *   -validation off,on       on - проверка коннекции при каждой выдаче
+ *   -debug off|sampled|full  PoolConfig.debugMode
+ *   -work 0                  сколько мкс держать коннекцию
+ *   -think 0                 пауза между выдачами, мкс
+ *   -time 5 -warmup 2        длительность замера и прогрева, с
+ *   -runs 1                  сколько раз замерять каждый случай; в результат идет лучший замер:
+ *                            наибольший ops/s и наименьший p99 (шум машины замер только ухудшает)
+ *   -save file               записать результаты как базовые (ops/s и p99 по каждому случаю)
+ *   -baseline file           сравнить с базовыми: регресс - ops/s ниже базового больше чем на tolerance,
+ *                            p99 выше базового больше чем в (1+p99tolerance) раз или ошибки; код выхода 2
+ *   -tolerance 0.25          допустимое падение ops/s
+ *   -p99tolerance 0.5        допустимый рост p99 (p99 - граница корзины Histogram, шаг ~12.5%)
+ *
+ * contended - потоков больше чем коннекций, часть выдач идет через очередь ожидания.
+ * Абсолютные числа имеют смысл только на одной машине, поэтому базовый файл не хранится в git:
+ * он снимается через -save на той машине, где потом проверяется регресс (обычно до изменения).
+ *
+ * Запуск: lib/mkbench, затем
+ *   java -cp classes:bench-classes:log4j.jar kz.kkb.dbpool.bench.PoolBench -threads 1,64 -pool 16
+ * Проверка регресса: lib/mkbench save на исходном коде, затем lib/mkbench check на измененном
+ * (базовый файл - bench-baseline.properties в корне проекта, в .gitignore).
+ * </pre>
+ */
+public class PoolBench {
+
+    private int[] threads={1,4,16,64,256};
+    private int[] pools={8,64};
+    private boolean[] validation={false,true};
+    private int debugMode=new PoolConfig.Builder().debugMode;
+    private long workMicros=0;
+    private long thinkMicros=0;
+    private int seconds=5;
+    private int warmupSeconds=2;
+    private int runs=1;
+    private String saveFile;
+    private String baselineFile;
+    private double tolerance=0.25;
+    private double p99Tolerance=0.5;
+    //замеры по случаям <threads>.<pool>.<validation>: ops/s и p99 каждого запуска, ошибки - сумма
+    private final Map<String,List<Long>> opsRuns=new TreeMap<String,List<Long>>();
+    private final Map<String,List<Long>> p99Runs=new TreeMap<String,List<Long>>();
+    private final Map<String,Long> errorRuns=new TreeMap<String,Long>();
+
+    private volatile boolean running;
+    private volatile boolean measuring;
+
+    public static void main(String[] args) throws Exception {
+        PoolBench bench=new PoolBench();
+        bench.parseArgs(args);
+        bench.run();
+        System.exit(bench.finish() ? 0 : 2);
+    }
+
+    void parseArgs(String[] args) {
+        for (int i=0; i+1<args.length; i+=2) {
+            String name=args[i];
+            String value=args[i+1];
+            if ("-threads".equals(name)) threads=parseInts(value);
+            else if ("-pool".equals(name)) pools=parseInts(value);
+            else if ("-validation".equals(name)) {
+                String[] s=value.split(",");
+                validation=new boolean[s.length];
+                for (int j=0; j<s.length; j++) validation[j]="on".equalsIgnoreCase(s[j].trim());
+            }
+            else if ("-debug".equals(name)) {
+                if ("off".equalsIgnoreCase(value)) debugMode=PoolData.DEBUG_OFF;
+                else if ("sampled".equalsIgnoreCase(value)) debugMode=PoolData.DEBUG_SAMPLED;
+                else debugMode=PoolData.DEBUG_FULL;
+            }
+            else if ("-work".equals(name)) workMicros=Long.parseLong(value);
+            else if ("-think".equals(name)) thinkMicros=Long.parseLong(value);
+            else if ("-time".equals(name)) seconds=Integer.parseInt(value);
+            else if ("-warmup".equals(name)) warmupSeconds=Integer.parseInt(value);
+            else if ("-runs".equals(name)) runs=Math.max(1,Integer.parseInt(value));
+            else if ("-save".equals(name)) saveFile=value;
+            else if ("-baseline".equals(name)) baselineFile=value;
+            else if ("-tolerance".equals(name)) tolerance=Double.parseDouble(value);
+            else if ("-p99tolerance".equals(name)) p99Tolerance=Double.parseDouble(value);
+            else throw new IllegalArgumentException("Unknown option "+name);
+        }
+    }
+
+    private static int[] parseInts(String value) {
+        String[] s=value.split(",");
+        int[] res=new int[s.length];
+        for (int i=0; i<s.length; i++) res[i]=Integer.parseInt(s[i].trim());
+        return res;
+    }
+
+    void run() throws Exception {
+        Class.forName(StubDriver.class.getName());
+        System.out.println("work="+workMicros+"us think="+thinkMicros+"us time="+seconds+"s warmup="+warmupSeconds
+                +"s runs="+runs+" debugMode="+debugMode);
+        System.out.println(String.format("%7s %5s %5s %-11s %12s %8s %8s %8s %8s %7s %7s",
+                "threads","pool","valid","mode","ops/s","p50us","p99us","p999us","maxus","errors","opened"));
+        for (int p=0; p<pools.length; p++) {
+            for (int v=0; v<validation.length; v++) {
+                ConnectionPool pool=createPool(pools[p],validation[v]);
+                try {
+                    for (int t=0; t<threads.length; t++) {
+                        for (int r=0; r<runs; r++) runCase(pool,threads[t],pools[p],validation[v]);
+                    }
+                } finally {
+                    pool.destroy();
+                }
+            }
+        }
+    }
+
+    private ConnectionPool createPool(int size, boolean validate) throws InterruptedException {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.maxConn=size;
+        b.minSpareConn=size;
+        b.validationInterval=validate ? 0 : Long.MAX_VALUE;
+        b.debugMode=debugMode;
+        ConnectionPool pool=new ConnectionPool("bench-"+size+(validate ? "-v" : ""),
+                StubDriver.class.getName(),StubDriver.URL,"bench","bench",b.build());
+        pool.poolData.connCreator.fillPool();
+        long deadline=System.currentTimeMillis()+10000;
+        while (pool.getFreeCount()<size && System.currentTimeMillis()<deadline) Thread.sleep(10);
+        return pool;
+    }
+
+    private void runCase(final ConnectionPool pool, int threadCount, int poolSize, boolean validate) throws Exception {
+        final Histogram[] hist=new Histogram[threadCount];
+        final long[] ops=new long[threadCount];
+        final long[] errors=new long[threadCount];
+        final CountDownLatch started=new CountDownLatch(threadCount);
+        List<Thread> list=new ArrayList<Thread>();
+        running=true;
+        measuring=false;
+        for (int i=0; i<threadCount; i++) {
+            final int n=i;
+            hist[n]=new Histogram();
+            Thread th=new Thread("bench-"+n) {
+                public void run() {
+                    started.countDown();
+                    loop(pool,hist[n],ops,errors,n);
+                }
+            };
+            th.setDaemon(true);
+            list.add(th);
+            th.start();
+        }
+        started.await();
+        Thread.sleep(warmupSeconds*1000L);
+        int openedBefore=StubDriver.opened.get();
+        long start=System.nanoTime();
+        measuring=true;
+        Thread.sleep(seconds*1000L);
+        measuring=false;
+        long elapsed=System.nanoTime()-start;
+        running=false;
+        for (int i=0; i<list.size(); i++) list.get(i).join();
+
+        Histogram total=new Histogram();
+        long totalOps=0;
+        long totalErrors=0;
+        for (int i=0; i<threadCount; i++) {
+            total.add(hist[i]);
+            totalOps+=ops[i];
+            totalErrors+=errors[i];
+        }
+        double opsPerSecond=totalOps*1e9/elapsed;
+        System.out.println(String.format("%7d %5d %5s %-11s %12.0f %8d %8d %8d %8d %7d %7d",
+                threadCount,poolSize,validate ? "on" : "off",threadCount>poolSize ? "contended" : "uncontended",
+                opsPerSecond,total.getPercentile(50),total.getPercentile(99),total.getPercentile(99.9),
+                total.getMax(),totalErrors,StubDriver.opened.get()-openedBefore));
+        String key=threadCount+"."+poolSize+"."+(validate ? "on" : "off");
+        add(opsRuns,key,Math.round(opsPerSecond));
+        add(p99Runs,key,total.getPercentile(99));
+        Long e=errorRuns.get(key);
+        errorRuns.put(key,(e==null ? 0 : e)+totalErrors);
+    }
+
+    private static void add(Map<String,List<Long>> map, String key, long value) {
+        List<Long> list=map.get(key);
+        if (list==null) map.put(key,list=new ArrayList<Long>());
+        list.add(value);
+    }
+
+    /**
+     * Лучшие замеры по запускам, ключи в порядке случаев
+     */
+    private Map<String,String> results() {
+        Map<String,String> res=new TreeMap<String,String>();
+        for (Map.Entry<String,List<Long>> e : opsRuns.entrySet()) {
+            String key=e.getKey();
+            res.put(key+".ops",String.valueOf(Collections.max(e.getValue())));
+            res.put(key+".p99",String.valueOf(Collections.min(p99Runs.get(key))));
+            res.put(key+".errors",String.valueOf(errorRuns.get(key)));
+        }
+        return res;
+    }
+
+    /**
+     * Save results and/or compare them with the baseline
+     * @return false if some case regressed
+     */
+    boolean finish() throws IOException {
+        Map<String,String> results=results();
+        if (runs>1) {
+            System.out.println("best of "+runs+" runs:");
+            for (Map.Entry<String,String> e : results.entrySet()) {
+                if (!e.getKey().endsWith(".errors")) System.out.println("  "+e.getKey()+"="+e.getValue());
+            }
+        }
+        if (saveFile!=null) {
+            PrintWriter out=new PrintWriter(new OutputStreamWriter(new FileOutputStream(saveFile),"ISO-8859-1"));
+            try {
+                out.println("# PoolBench baseline: <threads>.<pool>.<validation>.ops|p99|errors, best of "+runs+" runs");
+                for (Map.Entry<String,String> e : results.entrySet()) out.println(e.getKey()+"="+e.getValue());
+            } finally {
+                out.close();
+            }
+            System.out.println("Baseline saved to "+saveFile);
+        }
+        if (baselineFile==null) return true;
+        Properties base=new Properties();
+        InputStream in=new FileInputStream(baselineFile);
+        try {
+            base.load(in);
+        } finally {
+            in.close();
+        }
+        int compared=0;
+        List<String> regressions=new ArrayList<String>();
+        for (String key : opsRuns.keySet()) {
+            String baseOps=base.getProperty(key+".ops");
+            if (baseOps==null) continue; //случая нет в базовом файле
+            compared++;
+            double ops=Double.parseDouble(results.get(key+".ops"));
+            double minOps=Double.parseDouble(baseOps)*(1-tolerance);
+            if (ops<minOps) regressions.add(key+": ops/s "+Math.round(ops)+" < "+Math.round(minOps));
+            String baseP99=base.getProperty(key+".p99");
+            long p99=Long.parseLong(results.get(key+".p99"));
+            //p99 в несколько микросекунд шумит на единицы - сравниваем не точнее 10 us
+            double maxP99=baseP99==null ? Double.MAX_VALUE : Math.max(Long.parseLong(baseP99)*(1+p99Tolerance),10);
+            if (p99>maxP99) regressions.add(key+": p99 "+p99+"us > "+(long)maxP99+"us");
+            if (!"0".equals(results.get(key+".errors")))
+                regressions.add(key+": "+results.get(key+".errors")+" errors");
+        }
+        if (compared==0) {
+            System.out.println("No case matches baseline "+baselineFile);
+            return false;
+        }
+        for (int i=0; i<regressions.size(); i++) System.out.println("REGRESSION "+regressions.get(i));
+        String limits="tolerance "+tolerance+", p99tolerance "+p99Tolerance;
+        System.out.println(regressions.isEmpty() ? "No regressions in "+compared+" cases, "+limits
+                : regressions.size()+" regressions in "+compared+" cases, "+limits);
+        return regressions.isEmpty();
+    }
+
+    private void loop(ConnectionPool pool, Histogram hist, long[] ops, long[] errors, int n) {
+        long count=0;
+        long failed=0;
+        while (running) {
+            boolean measure=measuring;
+            try {
+                long t0=System.nanoTime();
+                Connection con=pool.getConnection(5,TimeUnit.SECONDS);
+                long t1=System.nanoTime();
+                spin(workMicros);
+                long t2=System.nanoTime();
+                con.close();
+                long t3=System.nanoTime();
+                if (measure) {
+                    hist.recordNanos((t1-t0)+(t3-t2));
+                    count++;
+                }
+            } catch (Exception e) {
+                if (measure) failed++;
+            }
+            spin(thinkMicros);
+        }
+        ops[n]=count;
+        errors[n]=failed;
+    }
+
+    private static void spin(long micros) {
+        if (micros<=0) return;
+        long end=System.nanoTime()+micros*1000;
+        while (System.nanoTime()<end) {
+            //busy wait: sleep на микросекундах слишком неточен
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package kz.kkb.dbpool.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverPropertyInfo;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JDBC драйвер без базы данных для бенчмарков пула.
+ * URL: jdbc:stub:{что угодно}. Коннекции и statement-ы - пустые прокси, все вызовы мгновенны,
+ * чтобы в замерах было видно только время самого пула.
+ * connectDelay - задержка открытия коннекции, мс (имитация сети).
+ */
+public class StubDriver implements Driver {
+
+    public static final String URL="jdbc:stub:bench";
+
+    public static volatile long connectDelay=0;
+    public static final AtomicInteger opened=new AtomicInteger();
+    public static final AtomicInteger closed=new AtomicInteger();
+
+    static {
+        try {
+            java.sql.DriverManager.registerDriver(new StubDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) return null;
+        if (connectDelay>0) {
+            try {
+                Thread.sleep(connectDelay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while connecting");
+            }
+        }
+        opened.incrementAndGet();
+        return (Connection)Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new ConnHandler());
+    }
+
+    public boolean acceptsURL(String url) {
+        return url!=null && url.startsWith("jdbc:stub:");
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    /**
+     * Default value for the method return type
+     */
+    static Object empty(Class<?> type) {
+        if (type==boolean.class) return Boolean.FALSE;
+        if (type==int.class) return Integer.valueOf(0);
+        if (type==long.class) return Long.valueOf(0);
+        if (type==short.class) return Short.valueOf((short)0);
+        if (type==byte.class) return Byte.valueOf((byte)0);
+        if (type==double.class) return Double.valueOf(0);
+        if (type==float.class) return Float.valueOf(0);
+        return null;
+    }
+
+    private static class ConnHandler implements InvocationHandler {
+        private volatile boolean isClosed;
+        private boolean autoCommit=true;
+        private boolean readOnly;
+        private int isolation=Connection.TRANSACTION_READ_COMMITTED;
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name=method.getName();
+            if ("close".equals(name)) {
+                if (!isClosed) {
+                    isClosed=true;
+                    closed.incrementAndGet();
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) return Boolean.valueOf(isClosed);
+            if ("isValid".equals(name)) return Boolean.valueOf(!isClosed);
+            if ("equals".equals(name)) return Boolean.valueOf(proxy==args[0]);
+            if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+            if ("toString".equals(name)) return "StubConnection@"+Integer.toHexString(System.identityHashCode(proxy));
+            if (isClosed) throw new SQLException("Connection is closed");
+            if ("getAutoCommit".equals(name)) return Boolean.valueOf(autoCommit);
+            if ("setAutoCommit".equals(name)) { autoCommit=((Boolean)args[0]).booleanValue(); return null; }
+            if ("isReadOnly".equals(name)) return Boolean.valueOf(readOnly);
+            if ("setReadOnly".equals(name)) { readOnly=((Boolean)args[0]).booleanValue(); return null; }
+            if ("getTransactionIsolation".equals(name)) return Integer.valueOf(isolation);
+            if ("setTransactionIsolation".equals(name)) { isolation=((Integer)args[0]).intValue(); return null; }
+            if ("createStatement".equals(name) || "prepareStatement".equals(name) || "prepareCall".equals(name)) {
+                return Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+                        new Class<?>[]{java.sql.CallableStatement.class}, new StmtHandler((Connection)proxy));
+            }
+            return empty(method.getReturnType());
+        }
+    }
+
+    private static class StmtHandler implements InvocationHandler {
+        private final Connection conn;
+        private boolean isClosed;
+
+        StmtHandler(Connection conn) {
+            this.conn=conn;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name=method.getName();
+            if ("close".equals(name)) { isClosed=true; return null; }
+            if ("isClosed".equals(name)) return Boolean.valueOf(isClosed);
+            if ("equals".equals(name)) return Boolean.valueOf(proxy==args[0]);
+            if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+            if ("toString".equals(name)) return "StubStatement";
+            if ("getConnection".equals(name)) return conn;
+            if (isClosed) throw new SQLException("Statement is closed");
+            if ("execute".equals(name)) return Boolean.TRUE;
+            if ("executeQuery".equals(name)) {
+                return Proxy.newProxyInstance(StubDriver.class.getClassLoader(),
+                        new Class<?>[]{ResultSet.class}, new InvocationHandler() {
+                            public Object invoke(Object p, Method m, Object[] a) {
+                                return empty(m.getReturnType());
+                            }
+                        });
+            }
+            return empty(method.getReturnType());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package kz.kkb.dbpool.bench;
+
+import kz.kkb.dbpool.ConnectionPool;
+import kz.kkb.dbpool.PoolConfig;
+import kz.kkb.dbpool.PoolData;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <pre>
+ * Нагрузочная проверка пула на virtual threads (Java 21+):
+ * много заемщиков на virtual threads против маленького пула, потоки самого пула тоже virtual.
+ * Каждый заемщик несколько раз берет коннекцию, готовит statement, "работает" hold мкс и возвращает.
+ * Проверяется, что все выдачи успешны и открытых коннекций не больше maxConn.
+ * Код возврата 1 при ошибках - можно использовать в скриптах.
+ *
+ * Параметры: -borrowers 10000 -pool 10 -rounds 5 -hold 1000 -timeout 60
+ *
+ * Пиннинг carrier-потоков виден с -Djdk.tracePinnedThreads=full (JDK 21-23)
+ * или по событию jdk.VirtualThreadPinned в JFR.
+ * Virtual threads создаются через reflection, чтобы код собирался для Java 8.
+ * </pre>
+ */
+public class VirtualThreadBench {
+
+    public static void main(String[] args) throws Exception {
+        int borrowers=10000;
+        int poolSize=10;
+        int rounds=5;
+        long holdMicros=1000;
+        long timeoutSec=60;
+        for (int i=0; i+1<args.length; i+=2) {
+            if ("-borrowers".equals(args[i])) borrowers=Integer.parseInt(args[i+1]);
+            else if ("-pool".equals(args[i])) poolSize=Integer.parseInt(args[i+1]);
+            else if ("-rounds".equals(args[i])) rounds=Integer.parseInt(args[i+1]);
+            else if ("-hold".equals(args[i])) holdMicros=Long.parseLong(args[i+1]);
+            else if ("-timeout".equals(args[i])) timeoutSec=Long.parseLong(args[i+1]);
+            else throw new IllegalArgumentException("Unknown option "+args[i]);
+        }
+
+        ThreadFactory factory;
+        ExecutorService executor;
+        try {
+            Object builder=Thread.class.getMethod("ofVirtual").invoke(null);
+            factory=(ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+            executor=(ExecutorService)java.util.concurrent.Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException e) {
+            System.out.println("Virtual threads are not supported by this JVM ("+System.getProperty("java.version")+")");
+            System.exit(2);
+            return;
+        }
+
+        Class.forName(StubDriver.class.getName());
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.maxConn=poolSize;
+        b.minSpareConn=poolSize;
+        b.debugMode=PoolData.DEBUG_SAMPLED;
+        b.stmtCacheSize=4;
+        final ConnectionPool pool=new ConnectionPool("vt-bench",StubDriver.class.getName(),StubDriver.URL,"bench","bench",
+                b.build(),factory);
+        final PoolData pd=pool.poolData;
+
+        final AtomicInteger ok=new AtomicInteger();
+        final AtomicInteger failed=new AtomicInteger();
+        final AtomicInteger maxTotal=new AtomicInteger();
+        final int roundCount=rounds;
+        final long hold=holdMicros;
+        final long timeout=timeoutSec;
+        long start=System.nanoTime();
+        for (int i=0; i<borrowers; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    for (int r=0; r<roundCount; r++) {
+                        try {
+                            Connection con=pool.getConnection(timeout,TimeUnit.SECONDS);
+                            try {
+                                int total=pd.getTotalCount();
+                                int m=maxTotal.get();
+                                while (total>m && !maxTotal.compareAndSet(m,total)) m=maxTotal.get();
+                                PreparedStatement st=con.prepareStatement("SELECT 1");
+                                st.execute();
+                                LockSupport.parkNanos(hold*1000); //ожидание ответа базы
+                                st.close();
+                            } finally {
+                                con.close();
+                            }
+                            ok.incrementAndGet();
+                        } catch (Exception e) {
+                            if (failed.incrementAndGet()<=10) System.out.println("Borrow failed: "+e);
+                        }
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        boolean finished=executor.awaitTermination(timeoutSec*2,TimeUnit.SECONDS);
+        long elapsed=System.nanoTime()-start;
+        pool.destroy();
+
+        System.out.println("borrowers="+borrowers+" pool="+poolSize+" rounds="+rounds+" hold="+holdMicros+"us");
+        System.out.println("finished="+finished+" ok="+ok.get()+" failed="+failed.get()
+                +" time="+TimeUnit.NANOSECONDS.toMillis(elapsed)+"ms"
+                +" ops/s="+Math.round(ok.get()*1e9/elapsed)
+                +" maxOpen="+maxTotal.get()+" opened="+StubDriver.opened.get());
+        System.out.println("borrow: "+pool.getMetrics().borrowTime);
+        System.out.println("wait:   "+pool.getMetrics().waitTime);
+        boolean success=finished && failed.get()==0 && maxTotal.get()<=poolSize;
+        System.out.println(success ? "OK" : "FAILED");
+        System.exit(success ? 0 : 1);
+    }
+}
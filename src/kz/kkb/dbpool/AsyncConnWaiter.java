@@ -0,0 +1,68 @@
+package kz.kkb.dbpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Ожидание коннекции для ConnectionPool.acquireAsync(): вместо пробуждения потока
+ * переданная коннекция выдается и завершает future.
+ * Если future уже отменен или завершен по таймауту, выдача откатывается и коннекция
+ * возвращается в пул - заемщика у нее нет, поэтому утечь она не может.
+ */
+class AsyncConnWaiter extends ConnWaiter {
+
+    private final PoolData poolData;
+    private final CompletableFuture<Connection> future;
+    private final Throwable stack;//стек acquireAsync() для отладочной информации
+    private final long start;//System.nanoTime() вызова acquireAsync()
+    volatile Future<?> timeoutTask;
+
+    AsyncConnWaiter(PoolData poolData, CompletableFuture<Connection> future, Throwable stack, long start) {
+        this.poolData=poolData;
+        this.future=future;
+        this.stack=stack;
+        this.start=start;
+    }
+
+    void handedOver(PooledConnection conn) {
+        poolData.waiterDone();
+        Future<?> task=timeoutTask;
+        if (task!=null) task.cancel(false);
+        //сначала выдаем, потом отдаем заемщику: после complete() коннекция уже может быть возвращена
+        if (!conn.lease(null,stack)) {//закрыта при остановке пула
+            future.completeExceptionally(new SQLException("Cannot obtain connection from pool"));
+            return;
+        }
+        if (future.complete(conn)) {
+            long borrowNanos=System.nanoTime()-start;
+            poolData.metrics.borrows.increment();
+            poolData.metrics.borrowTime.recordNanos(borrowNanos);
+            poolData.metrics.waitTime.recordNanos(borrowNanos);
+            PoolListener l=poolData.listener;
+            if (l!=null) l.connectionLeased(conn,borrowNanos);
+            return;
+        }
+        //future отменен - откатываем выдачу
+        if (conn.unlease()) poolData.addConnToFree(conn);
+    }
+
+    boolean fail(SQLException reason) {
+        return abort(reason);
+    }
+
+    /**
+     * Stop waiting: timeout, cancellation of future or pool shutdown
+     * @param reason exception for the future, null if future is completed already
+     * @return false if connection was handed over already
+     */
+    boolean abort(Throwable reason) {
+        if (!cancel()) return false;
+        poolData.removeWaiter(this);
+        Future<?> task=timeoutTask;
+        if (task!=null) task.cancel(false);
+        if (reason!=null) future.completeExceptionally(reason);
+        return true;
+    }
+}
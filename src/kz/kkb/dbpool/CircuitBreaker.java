@@ -0,0 +1,106 @@
+package kz.kkb.dbpool;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <pre>
+ * Автомат защиты пула на время недоступности базы.
+ * CLOSED - обычная работа. После breakerThreshold неудачных созданий или тестов коннекций подряд
+ * переходит в OPEN: выдача сразу отказывает, создание коннекций прекращается,
+ * свободные коннекции закрываются, ожидающие получают ошибку.
+ * По истечении паузы первый заемщик (или цикл поддержки) переводит автомат в HALF_OPEN
+ * и запускает одну пробную коннекцию. Удача - CLOSED и пул заполняется заново,
+ * неудача - снова OPEN с вдвое большей паузой (от breakerMinBackoff до breakerMaxBackoff).
+ * На горячем пути выдачи - одно чтение volatile.
+ * </pre>
+ */
+class CircuitBreaker {
+
+    static final int CLOSED=0;
+    static final int OPEN=1;
+    static final int HALF_OPEN=2;
+    private static final String[] NAMES={"CLOSED","OPEN","HALF_OPEN"};
+
+    private final PoolData poolData;
+    private final AtomicInteger state=new AtomicInteger(CLOSED);
+    private final AtomicInteger failures=new AtomicInteger();//неудачи подряд
+    private volatile long backoff;//текущая пауза, ms
+    private volatile long retryAt;//System.nanoTime() следующей пробы
+
+    CircuitBreaker(PoolData poolData) {
+        this.poolData=poolData;
+    }
+
+    boolean isOpen() {
+        return state.get()!=CLOSED;
+    }
+
+    String getState() {
+        return NAMES[state.get()];
+    }
+
+    /**
+     * Connection opened or tested successfully
+     */
+    void onSuccess() {
+        if (failures.get()!=0) failures.set(0);
+        int s=state.get();
+        if (s!=CLOSED && state.compareAndSet(s,CLOSED)) {
+            backoff=0;
+            poolData.logger.info("Database is available again, circuit breaker closed");
+            if (poolData.connCreator!=null) poolData.connCreator.fillPool();
+        }
+    }
+
+    /**
+     * Connection could not be opened or failed the test
+     */
+    void onFailure() {
+        PoolConfig cfg=poolData.config;
+        int threshold=cfg.breakerThreshold;
+        if (threshold<=0) return;
+        int n=failures.incrementAndGet();
+        if (state.get()==HALF_OPEN) {
+            if (state.compareAndSet(HALF_OPEN,OPEN)) {
+                backoff=Math.min(Math.max(backoff*2,cfg.breakerMinBackoff),cfg.breakerMaxBackoff);
+                retryAt=System.nanoTime()+backoff*1000000L;
+                poolData.logger.warn("Database probe failed, next probe in "+backoff+" ms");
+            }
+        } else if (n>=threshold && state.compareAndSet(CLOSED,OPEN)) {
+            backoff=cfg.breakerMinBackoff;
+            retryAt=System.nanoTime()+backoff*1000000L;
+            poolData.logger.error("Database is unavailable after "+n+" failures in a row, circuit breaker opened");
+            poolData.failWaiters(unavailable());
+            if (poolData.connCreator!=null) poolData.connCreator.purgeFree();
+        }
+    }
+
+    /**
+     * Exception for a borrower while breaker is open. Starts a probe if backoff passed.
+     * @return
+     */
+    SQLException reject() {
+        poolData.metrics.rejected.increment();
+        probeIfDue();
+        return unavailable();
+    }
+
+    /**
+     * Start single probe connection if breaker is open and backoff passed
+     */
+    void probeIfDue() {
+        if (state.get()!=OPEN || System.nanoTime()-retryAt<0) return;
+        if (!state.compareAndSet(OPEN,HALF_OPEN)) return;
+        if (poolData.connCreator==null || !poolData.connCreator.probe()) {
+            //нет свободного разрешения или пул остановлен - попробуем позже
+            retryAt=System.nanoTime()+backoff*1000000L;
+            state.compareAndSet(HALF_OPEN,OPEN);
+        }
+    }
+
+    private SQLException unavailable() {
+        return new SQLTransientConnectionException("Database is unavailable, circuit breaker is "+getState());
+    }
+}
@@ -4,28 +4,293 @@ import org.apache.log4j.Logger;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
 import java.sql.DriverManager;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Создаватель коннекций.
  * Проверяет количество свободных коннекций и создает запасные.
- * Процесс создания коннекции может зависать.
- * В этом случае объект можно убить и создать новый.
+ * Коннекции создаются параллельно в ограниченном пуле потоков (createParallelism),
+ * по запросу fillPool() - из цикла поддержки или сразу, как только заемщик увидел нехватку.
+ * Процесс создания коннекции может зависать: каждая попытка ограничена createTimeout,
+ * так что зависшие потоки не копятся - их не больше createParallelism.
+ * Сам цикл поддержки (run) выполняется планировщиком ConnManager. Коннекции, которые он и LeaseWheel
+ * убирают из пула, физически закрываются в отдельном потоке closer: close() драйвера на мертвом сокете
+ * может висеть, а планировщик один на весь пул.
  */
 public class ConnCreator  implements Runnable {
 
 
-    private Thread runner;//процесс, поддерживающий пул
     private PoolData poolData;
     private Logger logger;
 
+    private ThreadPoolExecutor executor;//потоки, открывающие коннекции
+    final ThreadPoolExecutor closer;//поток, закрывающий коннекции вместо планировщика
+
     public ConnCreator(PoolData pd) {
         poolData=pd;
         logger=poolData.logger;
+        final AtomicInteger threadNo=new AtomicInteger();
+        int n=Math.max(1,poolData.config.createParallelism);
+        executor=new ThreadPoolExecutor(n,n,60,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return poolData.newThread(r,logger.getName()+".creator-"+threadNo.incrementAndGet(),true);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        closer=new ThreadPoolExecutor(1,1,60,TimeUnit.SECONDS,new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return poolData.newThread(r,logger.getName()+".closer",true);
+                    }
+                });
+        closer.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Запускает создание недостающих коннекций, не дожидаясь их открытия.
+     * Недостаток - это getSpareTarget() свободных (minSpareConn или цель PoolSizer) или число ожидающих потоков, если их больше,
+     * за вычетом уже создаваемых. Каждая создаваемая коннекция сначала получает разрешение
+     * PoolData.reservePermit(), поэтому общее число коннекций не превышает maxConn.
+     * Безопасно вызывать из любого потока, в т.ч. на каждой выдаче коннекции.
+     */
+    public void fillPool() {
+        fillPool(poolData.getSpareTarget());
+    }
+
+    /**
+     * То же, но запас - spare свободных коннекций (для прогрева пула)
+     * @param spare
+     */
+    void fillPool(int spare) {
+        if (!poolData.available || poolData.breaker.isOpen()) return;
+        resizeExecutor();
+        while (true) {
+            int pending=poolData.getPendingCount();
+            int need=Math.max(spare,poolData.getWaitingCount())-poolData.getFreeCount()-pending;
+            if (need<=0) return;
+            if (poolData.casPendingCount(pending,pending+1)) {
+                if (!poolData.reservePermit()) {//maxConn reached
+                    poolData.decPendingCount();
+                    return;
+                }
+                try {
+                    executor.execute(new CreateTask());
+                } catch (RuntimeException e) {//executor is shut down
+                    poolData.decPendingCount();
+                    poolData.releasePermit();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Попытка открыть одну коннекцию под разрешение, взятое в fillPool() или probe().
+     * Попытка ограничена PoolConfig.createTimeout: по истечении ее поток прерывается,
+     * разрешение возвращается, а коннекция, открывшаяся позже, закрывается и в пул не попадает.
+     * Итог фиксирует тот, кто первым переведет state из RUNNING: сама попытка или таймаут.
+     * Разрешение переходит к PooledConnection и возвращается при ее закрытии.
+     * Поток executor-а прерывается, только пока он занят этой попыткой: владелец потока (owner)
+     * снимается CAS-ом либо самой попыткой на выходе, либо таймаутом перед interrupt(). Если первым
+     * успел таймаут, попытка дожидается interrupt() и сбрасывает его, чтобы он не достался следующей задаче.
+     */
+    private class CreateTask implements Runnable {
+        private static final int RUNNING=0;
+        private static final int DONE=1;
+        private static final int ABANDONED=2;
+        private final AtomicInteger state=new AtomicInteger(RUNNING);
+        private final AtomicReference<Thread> owner=new AtomicReference<Thread>();
+        private volatile boolean interruptSent;
+        private long start;
+
+        public void run() {
+            Thread me=Thread.currentThread();
+            owner.set(me);
+            try {
+                create();
+            } finally {
+                if (!owner.compareAndSet(me,null)) {
+                    //abandon() уже забрал поток - ждем его interrupt()
+                    while (!interruptSent) Thread.yield();
+                }
+                Thread.interrupted();
+            }
+        }
+
+        private void create() {
+            start=System.currentTimeMillis();
+            ScheduledFuture<?> watchdog=null;
+            long timeout=poolData.config.createTimeout;
+            if (timeout>0) {
+                try {
+                    watchdog=poolData.connManager.schedule(new Runnable() {
+                        public void run() {
+                            abandon();
+                        }
+                    },timeout,TimeUnit.MILLISECONDS);
+                } catch (RuntimeException e) {//pool is stopped
+                }
+            }
+            Connection conn=null;
+            Exception error=null;
+            try {
+                conn=newConn();
+            } catch (Exception e) {
+                error=e;
+            } finally {
+                if (watchdog!=null) watchdog.cancel(false);
+            }
+            if (!state.compareAndSet(RUNNING,DONE)) {
+                //опоздали: попытка уже снята по таймауту и учтена как неудачная
+                if (conn!=null) {
+                    logger.warn("Connection "+poolData.connName(conn)+" opened after timeout, closing it");
+                    closeQuietly(conn);
+                }
+                return;
+            }
+            boolean created=false;
+            try {
+                if (error!=null) throw error;
+                if (!poolData.available) {//pool destroyed while connecting
+                    conn.close();
+                    return;
+                }
+                PooledConnection pc=new PooledConnection(poolData,conn);
+                pc.readDefaults();
+                poolData.register(pc);
+                created=true;
+                poolData.createResult(true);
+                poolData.addConnToFree(pc);
+                PoolListener l=poolData.listener;
+                if (l!=null) l.connectionCreated(pc,System.currentTimeMillis()-start);
+            } catch (Exception e) {
+                if (conn!=null && !created) closeQuietly(conn);
+                poolData.metrics.createFailures.increment();
+                poolData.createResult(false);
+                logger.error(e.getMessage(),e);
+            } finally {
+                poolData.decPendingCount();
+                if (!created) poolData.releasePermit();
+            }
+        }
+
+        /**
+         * Attempt took longer than createTimeout
+         */
+        void abandon() {
+            if (!state.compareAndSet(RUNNING,ABANDONED)) return;
+            long millis=System.currentTimeMillis()-start;
+            logger.error("Connection attempt to "+poolData.URL+" abandoned after "+millis+" ms");
+            poolData.connManager.creationHung(millis);
+            Thread t=owner.get();
+            if (t!=null && owner.compareAndSet(t,null)) {//поток еще занят этой попыткой
+                t.interrupt();
+                interruptSent=true;
+            }
+            poolData.metrics.createFailures.increment();
+            poolData.decPendingCount();
+            poolData.releasePermit();
+            poolData.createResult(false);
+        }
+    }
+
+    /**
+     * Open single probe connection regardless of the spare target and of the circuit breaker:
+     * while breaker is open, and for RoutingPool to see that a down replica is back.
+     * Success resets the count of consecutive failures and closes the breaker.
+     * @return false if it can not be started (maxConn reached or pool stopped)
+     */
+    boolean probe() {
+        if (!poolData.available || !poolData.reservePermit()) return false;
+        poolData.incPendingCount();
+        try {
+            executor.execute(new CreateTask());
+            return true;
+        } catch (RuntimeException e) {//executor is shut down
+            poolData.decPendingCount();
+            poolData.releasePermit();
+            return false;
+        }
+    }
+
+    /**
+     * Close all free connections, e.g. when database is down.
+     * Runs in creator thread, so the caller is not blocked by closing dead sockets.
+     */
+    void purgeFree() {
+        Runnable purge=new Runnable() {
+            public void run() {
+                int n=0;
+                PooledConnection conn;
+                while ((conn=poolData.pollFree())!=null) {
+                    conn.closePhysical();
+                    PoolListener l=poolData.listener;
+                    if (l!=null) l.connectionClosed(conn,PoolListener.BREAKER_OPEN);
+                    n++;
+                }
+                if (n>0) logger.warn("Closed "+n+" free connections");
+            }
+        };
+        try {
+            executor.execute(purge);
+        } catch (RuntimeException e) {
+            purge.run();
+        }
+    }
+
+    /**
+     * Close free connections while there are more than maxConn, e.g. after maxConn was reduced.
+     * Leased ones are closed on return, see ConnectionPool.freeConnection().
+     */
+    void drainExcess() {
+        int max=poolData.config.maxConn;
+        int n=0;
+        while (poolData.getTotalCount()>max) {
+            PooledConnection conn=poolData.pollFree();
+            if (conn==null) break;
+            conn.closePhysical(closer);
+            PoolListener l=poolData.listener;
+            if (l!=null) l.connectionClosed(conn,PoolListener.SHRINK);
+            n++;
+        }
+        if (n>0) logger.info("Closed "+n+" free connections over maxConn="+max);
+    }
+
+    private void resizeExecutor() {
+        int n=Math.max(1,poolData.config.createParallelism);
+        if (executor.getMaximumPoolSize()==n) return;
+        if (n>executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(n);
+            executor.setCorePoolSize(n);
+        } else {
+            executor.setCorePoolSize(n);
+            executor.setMaximumPoolSize(n);
+        }
+    }
+
+    /**
+     * Останавливает потоки создания коннекций. Зависшие на открытии получают interrupt.
+     * Уже начатые закрытия коннекций дорабатывают.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        closer.shutdown();
     }
     /**
      * Создает новую проверенную коннекцию.
@@ -35,35 +300,71 @@ public class ConnCreator  implements Runnable {
      */
 
     private Connection newConn() throws SQLException {
-      logger.debug("Creating a new connection "+poolData.URL+"...");
+      if (logger.isDebugEnabled()) logger.debug("Creating a new connection "+poolData.URL+"...");
       Connection con = null;
       long lTime=System.currentTimeMillis();
-      DriverManager.setLoginTimeout(20);//таймаут на логин в базу
+      PoolConfig cfg=poolData.config;
+      DriverManager.setLoginTimeout(cfg.loginTimeout);//таймаут на логин в базу
       con = DriverManager.getConnection(poolData.URL, poolData.user, poolData.password);
-      //тестируем полученную коннекцию
-      if (!testConn(con)) {
-            logger.error ("Connection ERROR !");
-            throw new SQLException("Cannot create connection");
+      try {
+          //тест новой коннекции не должен висеть дольше таймаута создания
+          if (cfg.createTimeout>0) setNetworkTimeout(con,(int)cfg.createTimeout);
+          //тестируем полученную коннекцию
+          if (!testConn(con,cfg)) {
+                logger.error ("Connection ERROR !");
+                throw new SQLException("Cannot create connection");
+          }
+          if (cfg.createTimeout>0 || cfg.networkTimeout>0) setNetworkTimeout(con,cfg.networkTimeout);
+      } catch (SQLException e) {
+          closeQuietly(con);
+          throw e;
       }
-      logger.debug("Created a new connection "+poolData.connName(con)+" in "+(System.currentTimeMillis()-lTime)+" ms");
+      poolData.lastNewConnTime=(int)(System.currentTimeMillis()-lTime);
+      poolData.metrics.createTime.record(poolData.lastNewConnTime*1000L);
+      poolData.metrics.creates.increment();
+      if (logger.isDebugEnabled()) logger.debug("Created a new connection "+poolData.connName(con)+" in "+poolData.lastNewConnTime+" ms");
       return con;
     }
 
-    //public void start() {
-    //    runner = new Thread(this);
-    //    runner.start();
-    //}
-    //public void stop() {
-        //runner.interrupt();
-        //try { runner.join(10000); }
-        //catch(InterruptedException e){} // ignore
-    //}
+    /**
+     * JDBC4.1 network timeout. Ignored if driver does not support it.
+     * @param con
+     * @param millis 0 - no timeout
+     */
+    private void setNetworkTimeout(Connection con, int millis) {
+        try {
+            con.setNetworkTimeout(DIRECT,millis);
+        } catch (AbstractMethodError e) {
+        } catch (SQLException e) {
+            logger.debug("Can't set network timeout: "+e);
+        }
+    }
+
+    static final Executor DIRECT=new Executor() {//драйвер закрывает сокет в своем потоке
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private void closeQuietly(Connection con) {
+        try {
+            con.close();
+        } catch (Exception e) {
+            logger.warn("Can't close connection "+poolData.connName(con)+": "+e);
+        }
+    }
 
     /**
-     * тестирует коннекцию
+     * тестирует коннекцию.
+     * Запросом PoolConfig.testQuery, если он задан. Иначе, если драйвер поддерживает JDBC4, - через
+     * Connection.isValid(), а если нет - запросом poolData.sTestQuery.
      * @return
      */
     public boolean testConn(Connection con) {
+        return testConn(con,poolData.config);
+    }
+
+    private boolean testConn(Connection con, PoolConfig cfg) {
         boolean rc=true;
         String s="conn is null";
         //если null, тест failed
@@ -76,10 +377,16 @@ public class ConnCreator  implements Runnable {
             if (con.isClosed()) {
                 s="conn closed";
                 rc=false;
+            } else if (cfg.testQuery==null && poolData.useIsValid) {
+                if (!isValid(con,cfg.validationTimeout)) {
+                    s="isValid() returned false";
+                    rc=false;
+                }
+            } else {
+                //isClosed не тестирует соединение !
+                //приходится тестировать реальным селектом
+                executeTestQuery(con,cfg.testQuery!=null ? cfg.testQuery : poolData.sTestQuery);
             }
-            //isClosed не тестирует соединение !
-            //приходится тестировать реальным селектом
-            con.createStatement().execute(poolData.sTestQuery);
         } catch (Exception e) {
             s=e.toString();
             rc=false;
@@ -89,70 +396,92 @@ public class ConnCreator  implements Runnable {
         return rc;
     }
 
-    public void run() {
-        logger.info("ConnCreator thread started");
-        while(true) {
-            try {//prevent from exit by exception
-                //set current time for checking
-                poolData.lastConnCreatorTime=System.currentTimeMillis();
-                //killing of bad connections
-                Object[] entries=poolData.getLeasedTable().keySet().toArray();
-                for (int i=0; i<entries.length; i++) {
-                    try {
-	                	Connection conn=(Connection)entries[i];
-	                    Date connDate=(Date)poolData.getLeasedTable().get(conn);
-	                    //test for timeout
-	                    if (System.currentTimeMillis()-connDate.getTime() > poolData.connTimeout) {
-	                        //kill bad connection
-	                        logger.warn("Lease timeout! killing connection "+poolData.connName(conn)+", debug="+poolData.getDebugInfo(conn));
-	                        poolData.removeFromLeased(conn);
-	                        	conn.close();
-	                    }
-	                } catch (Exception e1) {//catch exception here, for continue if any error occured
-	                	logger.error(e1.getMessage(),e1);
-	                	//if this closing is in error, don't try another closing
-	                }
-                }
+    /**
+     * JDBC4 test. Old drivers throw AbstractMethodError or SQLFeatureNotSupportedException,
+     * then isValid is switched off for the pool and sTestQuery is used.
+     */
+    private boolean isValid(Connection con, int timeout) throws SQLException {
+        try {
+            return con.isValid(timeout);
+        } catch (AbstractMethodError e) {
+            logger.info("Driver does not support Connection.isValid(), using test query");
+        } catch (SQLFeatureNotSupportedException e) {
+            logger.info("Driver does not support Connection.isValid(), using test query");
+        }
+        poolData.useIsValid=false;
+        executeTestQuery(con,poolData.sTestQuery);
+        return true;
+    }
 
-                if (poolData.getFreeCount() > poolData.minSpareConn*2) {
-                    //removing spare connections
-                    for (int i=0;i<poolData.getFreeCount() - poolData.minSpareConn;i++) {
-                        Connection conn=(Connection)poolData.getFreeConn();
-                        conn.close();
-                        logger.debug("Spare connection removed "+poolData.connName(conn));
-                        }
-                    }
+    private void executeTestQuery(Connection con, String query) throws SQLException {
+        Statement st=con.createStatement();
+        try {
+            st.execute(query);
+        } finally {
+            st.close();
+        }
+    }
 
-                if (poolData.getFreeCount() < poolData.minSpareConn) { //create new spare connections
-                    //only if total quantity is less than maxConn
-                    if (poolData.getLeasedCount()+poolData.getFreeCount() < poolData.maxConn)
-                    //creating one half of difference
-                    for (int i=0;i<(poolData.minSpareConn-poolData.getFreeCount())/2;i++) {
-                        Connection conn=newConn();
-                        poolData.addConnToFree(conn);
-                        logger.info("Spare connection created "+poolData.connName(conn));
-                        Thread.yield();//временно отдаем управление системе
-                        if (runner.interrupted()) {//проверяем на прерывание каждый цикл
-                            logger.info("ConnCreator thread interrupted");
-                            return;
-                        }
-                    }
+    /**
+     * Закрывает свободные коннекции, прожившие maxLifetime, и простаивающие дольше idleTimeout
+     * (последние - только сверх getSpareTarget()). Замену открывает fillPool() в том же цикле,
+     * так что заемщик получает свежую коннекцию, а не оборванную по таймауту сервера или firewall.
+     * @param now
+     */
+    private void retireFree(long now) {
+        List<PooledConnection> all=poolData.getAllConnections();
+        int excess=poolData.getFreeCount()-poolData.getSpareTarget();
+        for (int i=0; i<all.size(); i++) {
+            PooledConnection conn=all.get(i);
+            if (conn.isLeased()) continue; //выданная будет закрыта при возврате
+            String reason;
+            if (conn.isExpired(now)) reason=PoolListener.MAX_LIFETIME;
+            else if (excess>0 && conn.isIdleExpired(now)) reason=PoolListener.IDLE_TIMEOUT;
+            else continue;
+            if (!poolData.removeFree(conn)) continue; //ее только что взяли
+            if (reason==PoolListener.IDLE_TIMEOUT) excess--;
+            conn.closePhysical(closer);
+            PoolListener l=poolData.listener;
+            if (l!=null) l.connectionClosed(conn,reason);
+        }
+    }
+
+    /**
+     * Цикл поддержки пула, выполняется планировщиком ConnManager раз в 10 секунд:
+     * закрывает старые и лишние коннекции, создает запасные.
+     * Выданные дольше connTimeout отбирает LeaseWheel.
+     */
+    public void run() {
+        try {//prevent from exit by exception
+            //set current time for checking
+            poolData.lastConnCreatorTime=System.currentTimeMillis();
+            //closing old and idle connections
+            retireFree(System.currentTimeMillis());
+            //созданные уже после уменьшения maxConn
+            drainExcess();
+
+            //прогретые warmUp() сверх запаса (initialSize) не трогаем - их закроет idleTimeout
+            int spare=poolData.getSpareTarget();
+            int initial=poolData.config.initialSize;
+            int free=poolData.getFreeCount();
+            int excess=free-Math.max(spare,initial);
+            if (free > Math.max(spare*2,initial) && excess > 0) {
+                //removing spare connections
+                for (int i=0;i<excess;i++) {
+                    PooledConnection conn=poolData.getFreeConn();
+                    if (conn==null) break; //borrowers took them concurrently
+                    conn.closePhysical(closer);
+                    PoolListener l=poolData.listener;
+                    if (l!=null) l.connectionClosed(conn,PoolListener.SPARE);
                 }
-            } catch (Exception e) {//тут ловим возможные ошибки SQL
-            	logger.error(e.getMessage(),e);
-            }
-            //и только потом обрабатываем прерывание и ждем 
-            if (runner.interrupted()) {
-                logger.info("ConnCreator thread interrupted");
-                return;
-            }
-            // Wait 10 seconds for next cycle
-            try {
-                Thread.sleep(10000);
-            } catch(InterruptedException e) {
-                logger.info("ConnCreator thread stopped");
-                return;
             }
+
+            //create new spare connections (only if total quantity is less than maxConn)
+            fillPool();
+            //база недоступна - проба, даже если заемщиков нет
+            poolData.breaker.probeIfDue();
+        } catch (Exception e) {//тут ловим возможные ошибки SQL
+            logger.error(e.getMessage(),e);
         }
     }
 
@@ -2,90 +2,70 @@ package kz.kkb.dbpool;
 
 import org.apache.log4j.Logger;
 
-import java.util.Iterator;
 import java.util.Date;
-import java.sql.Connection;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
- * Процесс, управляющий освобождением коннекций и удалением лишних.
+ * Планировщик пула: один поток, в котором выполняются цикл поддержки ConnCreator (раз в 10 секунд),
+ * таймер выданных коннекций LeaseWheel, адаптивный размер PoolSizer, таймауты попыток открыть коннекцию и асинхронных ожиданий.
+ * Зависшая попытка открыть коннекцию не останавливает поддержку: она снимается по своему
+ * таймауту (PoolConfig.createTimeout), поток создания прерывается, а опоздавшая коннекция закрывается.
  */
-public class ConnManager  implements Runnable {
+public class ConnManager {
+
+    private static final long HOUSEKEEPING_INTERVAL=10000;//ms
 
-    private Thread runner;//процесс, поддерживающий пул
-    private Thread creator_runner;//процесс, создающий коннекции
     private PoolData poolData;
     private Logger logger;
+    private ScheduledThreadPoolExecutor scheduler;
 
     public ConnManager(PoolData pd) {
         poolData=pd;
         logger=poolData.logger;
     }
+
     public void start() {
+        scheduler=new ScheduledThreadPoolExecutor(1,new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return poolData.newThread(r,logger.getName()+".scheduler",true);
+            }
+        });
+        scheduler.setRemoveOnCancelPolicy(true);//отмененные таймауты не копятся в очереди
         poolData.lastConnCreatorTime=System.currentTimeMillis();
-        startCreator();
-        runner = new Thread(this);
-        runner.start();
+        poolData.connCreator=new ConnCreator(poolData);
+        scheduler.scheduleWithFixedDelay(poolData.connCreator,0,HOUSEKEEPING_INTERVAL,TimeUnit.MILLISECONDS);
+        scheduler.scheduleAtFixedRate(poolData.leaseWheel,LeaseWheel.TICK,LeaseWheel.TICK,TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(poolData.sizer,PoolSizer.INTERVAL,PoolSizer.INTERVAL,TimeUnit.MILLISECONDS);
+        logger.info("Pool scheduler started");
     }
 
     public void stop() {
-        stopCreator();
-        runner.interrupt();
-        // Wait until the housekeeping thread has died.
-        //try { runner.join(5000); }
-        //catch(InterruptedException e){} // ignore
+        scheduler.shutdownNow();
+        poolData.connCreator.shutdown();
+        logger.info("Pool scheduler stopped");
     }
 
-    private void startCreator() {
-        poolData.connCreator=new ConnCreator(poolData);
-        creator_runner = new Thread(poolData.connCreator);
-        creator_runner.start();
+    /**
+     * Run task once after delay in the pool scheduler thread.
+     * Task must be short and must not block.
+     * @throws java.util.concurrent.RejectedExecutionException if pool is stopped
+     */
+    ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return scheduler.schedule(task,delay,unit);
     }
 
-    private void stopCreator() {
-        creator_runner.interrupt();
-        // Wait until the housekeeping thread has died.
-        //try { creator_runner.join(10000); }
-        //catch(InterruptedException e){} // ignore
-    }
     /**
-     * Процесс, поддерживающий пул.
-     * В некоторых случаях тред зависает, похоже при создании новой коннекции,
-     * поэтому менеджер может рестартовать тред создания коннекций
+     * Attempt to open connection was abandoned by timeout: remember it for diagnostics
+     * @param millis
      */
-    public void run() {
-        logger.info("Manager thread started");
-        while(true) {
-            try {//prevent from exit by exception
-                long currTime=System.currentTimeMillis();
-                //отстрел зависшего креатора
-                if (currTime-poolData.lastConnCreatorTime>60000*5) { //if hangs more than 5 minutes ago
-                    //тред завис, надо пересоздать
-                    logger.error("Creator is hangs, starting new...");
-                    //добавляем диагностику зависаний
-                    poolData.hangCounter++;
-                    poolData.hangLog.append ("Hangs at "+new Date()+"\n");
-                    if (poolData.hangLog.length()>1000) {
-                        poolData.hangLog.delete(0,1000-poolData.hangLog.length());
-                        poolData.hangLog.trimToSize();
-                    }
-                    //стопим зависший тред обязательно - иначе он будет продолжать работать с PoolData 
-                    stopCreator();
-                    startCreator();
-                }
-            } catch (Exception e) {
-                logger.error("Manager error: ",e);
-            }
-            // Wait 20 seconds for next cycle
-            try {
-                Thread.sleep(20000);
-            } catch(InterruptedException e) {
-                // Returning from the run method sets the internal
-                // flag referenced by Thread.isAlive() to false.
-                // This is required because we don't use stop() to
-                // shutdown this thread.
-                logger.info("Manager thread stopped");
-                return;
-            }
+    void creationHung(long millis) {
+        synchronized (poolData.hangLog) {
+            poolData.hangCounter++;
+            poolData.hangLog.append("Hangs at "+new Date()+" for "+millis+" ms\n");
+            if (poolData.hangLog.length()>1000) poolData.hangLog.delete(0,poolData.hangLog.length()-1000);
         }
     }
 }
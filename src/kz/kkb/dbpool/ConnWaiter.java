@@ -0,0 +1,86 @@
+package kz.kkb.dbpool;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Поток, ожидающий коннекцию в очереди PoolData.
+ * Возвращенная или созданная коннекция передается ожидающему напрямую, минуя пул свободных.
+ * Слот заполняется ровно один раз: либо коннекцией (offer), либо отменой по таймауту (cancel).
+ * Асинхронный вариант ожидания - AsyncConnWaiter.
+ */
+class ConnWaiter {
+
+    private static final Object CANCELLED=new Object();
+
+    private final Thread thread=Thread.currentThread();
+    private final AtomicReference<Object> slot=new AtomicReference<Object>();
+
+    /**
+     * Hand the connection to this waiter and wake it up.
+     * @param conn
+     * @return false if waiter already timed out or got another connection
+     */
+    boolean offer(PooledConnection conn) {
+        if (!slot.compareAndSet(null,conn)) return false;
+        handedOver(conn);
+        return true;
+    }
+
+    /**
+     * Called by offer() in the thread that hands the connection over
+     * @param conn
+     */
+    void handedOver(PooledConnection conn) {
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Cancel waiting. If it fails, a connection was handed over and must be taken by take().
+     * @return
+     */
+    boolean cancel() {
+        return slot.compareAndSet(null,CANCELLED);
+    }
+
+    /**
+     * Stop waiting with an error. Blocked thread wakes up without connection.
+     * @param reason
+     * @return false if connection was handed over already
+     */
+    boolean fail(SQLException reason) {
+        if (!cancel()) return false;
+        LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * Connection handed over by offer(), or null
+     * @return
+     */
+    PooledConnection take() {
+        Object o=slot.get();
+        return o==CANCELLED ? null : (PooledConnection)o;
+    }
+
+    /**
+     * Park current thread until connection is handed over or deadline (System.nanoTime) passed.
+     * On timeout the waiter is cancelled.
+     * @param deadline
+     * @return connection or null on timeout
+     */
+    PooledConnection await(long deadline) {
+        while (true) {
+            Object o=slot.get();
+            if (o==CANCELLED) return null; //fail()
+            if (o!=null) return (PooledConnection)o;
+            long left=deadline-System.nanoTime();
+            if (left<=0 || thread.isInterrupted()) {
+                if (cancel()) return null;
+                return take(); //коннекцию успели отдать до отмены
+            }
+            LockSupport.parkNanos(this,left);
+        }
+    }
+}
@@ -6,8 +6,28 @@ import java.sql.DriverManager;
 import java.sql.Driver;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLTimeoutException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
 
 /**
  * <pre>
@@ -17,19 +37,21 @@ import java.util.Date;
  * - имеет ограничение на число открытых коннекций maxConn (100)
  * - препятствует взрывообразному росту коннекций, т.к. тред, открывающий коннекции выполнен отдельно.
  * - зависание треда открытия коннекций не является проблемой: все остальное работает в другомм треде
- * - тред открытия коннекций при зависании автоматически пересоздается
+ * - зависшая попытка открыть коннекцию снимается по таймауту, опоздавшая коннекция закрывается
  * - логгирование идет через log4j
  *  
  * Создавать по одному пулу для каждой базы данных
  * Пул создается как объект. Затем он порождает внутри себя объект ConnManager,
  * передает ему параметры и запускает его тред.
  *
- * ConnManager в свою очередь управляет тредом объекта ConnCreator.
- * Т.е. проверяет что тред не завис, и если завис, пересоздает объект ConnCreator
+ * ConnManager в свою очередь держит поток-планировщик, в котором раз в 10 секунд
+ * выполняется цикл поддержки ConnCreator и снимаются по таймауту зависшие попытки открыть коннекцию
  *
  * Логирование выполняется с помощью log4j.
  * Имя логгера: ConnectionPool.{poolName}
  * log4j.properties помещать в /WEB_INF/classes
+ *
+ * Метрики пула (PoolMetrics) публикуются в JMX как kz.kkb.dbpool:type=ConnectionPool,name={poolName}
  */
 
  /*
@@ -46,6 +68,11 @@ public class ConnectionPool {// implements Runnable{
 
     public PoolData poolData=new PoolData();
     private Logger logger;
+    private ObjectName jmxName;
+    private ObjectName jmxConfigName;
+    private String poolName;
+    private final Object configLock=new Object();//reconfigure() по одному
+    private final AtomicBoolean shutdown=new AtomicBoolean();
 
     /**
      * Процедура установки имени логгера log4j.
@@ -65,8 +92,54 @@ public class ConnectionPool {// implements Runnable{
      * @param password
      */
     public ConnectionPool(String poolName, String driver, String URL, String user, String password) {
+        this(poolName,driver,URL,user,password,PoolConfig.DEFAULTS,null);
+    }
+
+    /**
+     * Создает пул с заданными параметрами: первые коннекции открываются уже по ним
+     * @param poolName
+     * @param driver
+     * @param URL
+     * @param user
+     * @param password
+     * @param config
+     */
+    public ConnectionPool(String poolName, String driver, String URL, String user, String password, PoolConfig config) {
+        this(poolName,driver,URL,user,password,config,null);
+    }
+
+    /**
+     * Создает пул, потоки которого создаются threadFactory
+     * (например Thread.ofVirtual().factory() для virtual threads)
+     * @param poolName
+     * @param driver
+     * @param URL
+     * @param user
+     * @param password
+     * @param threadFactory null - обычные потоки
+     */
+    public ConnectionPool(String poolName, String driver, String URL, String user, String password, ThreadFactory threadFactory) {
+        this(poolName,driver,URL,user,password,PoolConfig.DEFAULTS,threadFactory);
+    }
+
+    /**
+     * Создает пул с заданными параметрами, потоки которого создаются threadFactory
+     * @param poolName
+     * @param driver
+     * @param URL
+     * @param user
+     * @param password
+     * @param config
+     * @param threadFactory null - обычные потоки
+     */
+    public ConnectionPool(String poolName, String driver, String URL, String user, String password, PoolConfig config,
+                          ThreadFactory threadFactory) {
+      if (config==null) throw new NullPointerException("config");
       setLogger(poolName);
+      poolData.config=config;
+      this.poolName=poolName;
       poolData.connPool=this;
+      poolData.threadFactory=threadFactory;
       poolData.driverName=driver;
       poolData.URL = URL;
       poolData.user = user;
@@ -82,10 +155,118 @@ public class ConnectionPool {// implements Runnable{
         logger.error("Can't register JDBC driver: "+poolData.driverName, e);
       }
 
+        registerMBean(poolName);
         poolData.connManager=new ConnManager(poolData);
         poolData.connManager.start();
     }
 
+    private void registerMBean(String poolName) {
+        try {
+            MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+            ObjectName name=new ObjectName("kz.kkb.dbpool:type=ConnectionPool,name="+ObjectName.quote(poolName));
+            if (server.isRegistered(name)) server.unregisterMBean(name); //пул пересоздан при редеплое
+            server.registerMBean(poolData.metrics,name);
+            jmxName=name;
+            name=new ObjectName("kz.kkb.dbpool:type=PoolConfig,name="+ObjectName.quote(poolName));
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+            server.registerMBean(new StandardMBean(new ConfigControl(),PoolConfigMBean.class),name);
+            jmxConfigName=name;
+        } catch (Exception e) {
+            logger.warn("Can't register pool metrics in JMX: "+e);
+        }
+    }
+
+    private void unregisterMBean() {
+        ObjectName[] names={jmxName,jmxConfigName};
+        for (int i=0; i<names.length; i++) {
+            if (names[i]==null) continue;
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(names[i]);
+            } catch (Exception e) {
+                logger.debug("Can't unregister pool metrics from JMX: "+e);
+            }
+        }
+        jmxName=null;
+        jmxConfigName=null;
+    }
+
+    /**
+     * Текущие параметры пула
+     * @return
+     */
+    public PoolConfig getConfig() {
+        return poolData.config;
+    }
+
+    /**
+     * Меняет параметры работающего пула без остановки выдачи.
+     * Уменьшение maxConn: лишние свободные коннекции закрываются сразу, выданные - при возврате
+     * (если их не ждут), новые не создаются, пока коннекций больше maxConn.
+     * Увеличение maxConn или запаса: недостающие коннекции начинают создаваться сразу.
+     * Новый набор параметров заменяет старый одной записью: операции пула видят либо старые значения,
+     * либо новые, но не смесь.
+     * @param config
+     */
+    public void reconfigure(PoolConfig config) {
+        if (config==null) throw new NullPointerException("config");
+        synchronized (configLock) {
+            PoolConfig old=poolData.config;
+            poolData.config=config;
+            logger.info("Pool reconfigured: "+config);
+            if (config.maxConn<old.maxConn) poolData.connCreator.drainExcess();
+            poolData.connCreator.fillPool();
+        }
+    }
+
+    /**
+     * Прогрев пула: открывает max(initialSize, minSpareConn) коннекций параллельно
+     * (по createParallelism) и ждет, пока они откроются. Вызывать после установки параметров пула.
+     * Коннекции сверх 2*minSpareConn потом закрываются циклом поддержки, как обычно.
+     * @param timeout
+     * @param unit
+     * @return false если за timeout пул не прогрелся (например база недоступна), пул при этом работает
+     */
+    public boolean warmUp(long timeout, TimeUnit unit) {
+        PoolConfig cfg=poolData.config;
+        int target=Math.min(Math.max(cfg.initialSize,cfg.minSpareConn),cfg.maxConn);
+        long deadline=System.nanoTime()+unit.toNanos(timeout);
+        long start=System.currentTimeMillis();
+        while (poolData.getTotalCount()-poolData.getPendingCount()<target) {
+            //повторяем: неудачно созданные коннекции перестают быть pending
+            poolData.connCreator.fillPool(target);
+            if (!poolData.available || System.nanoTime()-deadline>=0) {
+                logger.warn("Pool is not warmed up in "+unit.toMillis(timeout)+" ms: opened "
+                        +(poolData.getTotalCount()-poolData.getPendingCount())+" of "+target);
+                return false;
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        logger.info("Pool warmed up: "+target+" connections in "+(System.currentTimeMillis()-start)+" ms");
+        return true;
+    }
+
+    /**
+     * Метрики пула
+     * @return
+     */
+    public PoolMetrics getMetrics() {
+        return poolData.metrics;
+    }
+
+    /**
+     * Состояние пула для мониторинга, собирается без блокировки выдачи
+     * @param top how many longest leases to report
+     * @return
+     */
+    public PoolStatus getStatus(int top) {
+        return new PoolStatus(poolName,poolData,top);
+    }
+
     /**
      * Гарантированно выдает исправную коннекцию.
      * Либо из пула, либо новую.
@@ -94,60 +275,240 @@ public class ConnectionPool {// implements Runnable{
      * @throws java.sql.SQLException если невозможно создать правильную коннекцию
      */
     public Connection getConnection() throws SQLException {
-        String sDebug=new Exception().getStackTrace()[2].toString();
-        return getConnection(sDebug);
+        return getConnection(null,0);
     }
 
+    /**
+     * То же, но вместо места вызова запоминает переданную отладочную информацию
+     * @param sDebugInfo
+     * @return
+     * @throws SQLException
+     */
     public Connection getConnection(String sDebugInfo) throws SQLException {
+        if (sDebugInfo==null) sDebugInfo="null";
+        return getConnection(sDebugInfo,0);
+    }
+
+    /**
+     * Выдает исправную коннекцию, при пустом пуле ждет ее не дольше timeout.
+     * Ожидающие обслуживаются в порядке очереди: возвращенная или вновь созданная коннекция
+     * отдается самому старому из них.
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws java.sql.SQLException если за timeout коннекция не получена
+     */
+    public Connection getConnection(long timeout, TimeUnit unit) throws SQLException {
+        return getConnection(null,unit.toNanos(timeout));
+    }
+
+    /**
+     * Стек вызова для отладочной информации, согласно PoolConfig.debugMode.
+     * Throwable запоминает стек дешево, разбор в StackTraceElement откладывается
+     * до момента, когда информация понадобится (долгая выдача, таймаут, статус пула).
+     * @return null если стек не нужен
+     */
+    private Throwable captureStack(PoolConfig cfg) {
+        int mode=cfg.debugMode;
+        if (mode==PoolData.DEBUG_OFF) return null;
+        //в режиме выборки стек запоминает 1 из debugSampleRate выдач
+        int rate=cfg.debugSampleRate;
+        if (mode==PoolData.DEBUG_SAMPLED && rate>1 && ThreadLocalRandom.current().nextInt(rate)!=0) return null;
+        return new Throwable("getConnection() call");
+    }
+
+    /**
+     * @param sDebugInfo отладочная информация, null - запомнить стек вызова
+     * @param timeoutNanos
+     * @return
+     * @throws SQLException
+     */
+    private Connection getConnection(String sDebugInfo, long timeoutNanos) throws SQLException {
+        long start=System.nanoTime();
+        long deadline=start+timeoutNanos;
+        PoolMetrics metrics=poolData.metrics;
+        PoolConfig cfg=poolData.config;
         //disable connection lease
-        if (!poolData.available)
-            throw new SQLException("Cannot establish connection");
-        //if maximum connections leased throw exception
-        if (poolData.getLeasedCount()>poolData.maxConn) {
-            logger.error("Maximum leased connections reached"+", pool size is "+poolData.getFreeCount()
-                   +", leased "+poolData.getLeasedCount());
-            throw new SQLException("Maximum leased connections reached");
-        }
-        Connection con=null;
-        for (int i=0; i<poolData.maxConn && con==null ;i++) { //ограничим цикл поиска коннекции
+        if (!poolData.available) throw isShutDown();
+        //база недоступна - отказываем сразу, не тестируя мертвые коннекции и не вставая в очередь
+        if (poolData.breaker.isOpen()) throw poolData.breaker.reject();
+        //лимит maxConn соблюдается при создании коннекций (PoolData.reservePermit):
+        //выдать можно только уже открытую, при исчерпании - ждем возврата
+        PooledConnection con=null;
+        for (int i=0; i<cfg.maxConn && con==null ;i++) { //ограничим цикл поиска коннекции
             //if (freeConnections.isEmpty()) throw new SQLException("Pool is empty");
             //получаем из пула (без тестирования)
-            con = getConn();
-            if (con==null) break; //если из пула не выдана коннекция, то нет смысла спрашивать еще
-            if (!poolData.connCreator.testConn(con)) con=null; //если тест не прошел - выбрасываем
+            con=poolData.getFreeConn();
+            //запас иссяк - создание запускаем сразу, не дожидаясь цикла ConnCreator
+            if (poolData.getFreeCount()<poolData.getSpareTarget()) poolData.connCreator.fillPool();
+            if (con==null) {
+                if (i==0) metrics.exhausted.increment();
+                //ждем возврата или создания коннекции, если вызывающий согласен ждать
+                long waitStart=System.nanoTime();
+                long left=deadline-waitStart;
+                if (left>0) {
+                    con=poolData.waitFreeConn(left);
+                    metrics.waitTime.recordNanos(System.nanoTime()-waitStart);
+                }
+                if (con==null) break; //если из пула не выдана коннекция, то нет смысла спрашивать еще
+            }
+            if (!validate(con,cfg)) {
+                con=null;
+                continue;
+            }
+            //переводим коннекцию в выданные, запоминаем время и кто взял
+            if (!con.lease(sDebugInfo,sDebugInfo==null ? captureStack(cfg) : null)) con=null; //закрыта в это время по таймауту
             //если пул пуст, получаем новую коннекцию (тестируем внутри)
             //if (con == null) con = newConn();
         }
-        if (con==null) throw new SQLException("Cannot obtain connection from pool");
-        //переводим коннекцию в список выданных, добавляем таймстамп
-        poolData.addConnToLeased(con,sDebugInfo);
-
-        logger.debug("Lease connection "+poolData.connName(con)+", pool size is "+poolData.getFreeCount()
-                +", leased "+poolData.getLeasedCount());
+        if (con==null) {
+            if (!poolData.available) throw isShutDown(); //ожидание прервано остановкой пула
+            if (poolData.breaker.isOpen()) throw poolData.breaker.reject(); //ожидание прервано автоматом
+            metrics.timeouts.increment();
+            throw new SQLException("Cannot obtain connection from pool");
+        }
+        long borrowNanos=System.nanoTime()-start;
+        metrics.borrows.increment();
+        metrics.borrowTime.recordNanos(borrowNanos);
+        PoolListener l=poolData.listener;
+        if (l!=null) l.connectionLeased(con,borrowNanos);
         return con;
     }
 
     /**
-     * Возвращает непроверенную коннекцию или null если пул пуст
+     * Test connection if it was not used for validationInterval.
+     * Connection handed to a waiter is just returned or created, so it is not tested.
+     * Bad connection is closed.
+     * @param con
+     * @return false if test failed
+     */
+    private boolean validate(PooledConnection con, PoolConfig cfg) {
+        if (System.currentTimeMillis()-con.lastAccess<cfg.validationInterval) return true;
+        long testStart=System.nanoTime();
+        boolean valid=poolData.connCreator.testConn(con.conn);
+        poolData.metrics.validationTime.recordNanos(System.nanoTime()-testStart);
+        if (valid) {
+            poolData.breaker.onSuccess();
+        } else {
+            poolData.metrics.validationFailures.increment();
+            con.closePhysical(); //если тест не прошел - выбрасываем
+            PoolListener l=poolData.listener;
+            if (l!=null) l.connectionClosed(con,PoolListener.VALIDATION_FAILED);
+            poolData.breaker.onFailure();
+        }
+        return valid;
+    }
+
+    /**
+     * Асинхронная выдача коннекции без ограничения времени ожидания.
+     * Ожидание прекращается отменой future (cancel(), orTimeout() и т.п.).
      * @return
+     * @see #acquireAsync(long, TimeUnit)
      */
-    private Connection getConn() {
-        return poolData.getFreeConn();
+    public CompletableFuture<Connection> acquireAsync() {
+        return acquireAsync(0,null);
+    }
+
+    /**
+     * Асинхронная выдача коннекции. Future завершается сразу, если в пуле есть свободная коннекция,
+     * иначе - когда коннекцию вернут в пул или создадут, в очереди вместе с синхронными ожидающими.
+     * По таймауту future завершается SQLTimeoutException.
+     * Отмена future в любой момент безопасна: коннекция, выданная отмененному future, возвращается в пул.
+     * Внимание: зависимые от future действия (thenApply и т.п.) выполняются в потоке,
+     * вернувшем коннекцию в пул - для долгих действий используйте варианты *Async.
+     * @param timeout 0 - без таймаута
+     * @param unit
+     * @return
+     */
+    public CompletableFuture<Connection> acquireAsync(long timeout, TimeUnit unit) {
+        long start=System.nanoTime();
+        CompletableFuture<Connection> future=new CompletableFuture<Connection>();
+        if (!poolData.available) {
+            future.completeExceptionally(isShutDown());
+            return future;
+        }
+        if (poolData.breaker.isOpen()) {
+            future.completeExceptionally(poolData.breaker.reject());
+            return future;
+        }
+        PoolConfig cfg=poolData.config;
+        Throwable stack=captureStack(cfg);
+        PooledConnection con;
+        while ((con=poolData.getFreeConn())!=null) {
+            if (poolData.getFreeCount()<poolData.getSpareTarget()) poolData.connCreator.fillPool();
+            if (validate(con,cfg) && con.lease(null,stack)) {
+                long borrowNanos=System.nanoTime()-start;
+                poolData.metrics.borrows.increment();
+                poolData.metrics.borrowTime.recordNanos(borrowNanos);
+                PoolListener l=poolData.listener;
+                if (l!=null) l.connectionLeased(con,borrowNanos);
+                future.complete(con);
+                return future;
+            }
+        }
+        poolData.metrics.exhausted.increment();
+        final AsyncConnWaiter w=new AsyncConnWaiter(poolData,future,stack,start);
+        poolData.waitAsync(w);
+        //таймаут и отмену ставим после постановки в очередь, иначе отмена может опередить ее
+        if (timeout>0) {
+            final long millis=unit.toMillis(timeout);
+            try {
+                w.timeoutTask=poolData.connManager.schedule(new Runnable() {
+                    public void run() {
+                        if (w.abort(new SQLTimeoutException("Cannot obtain connection from pool in "+millis+" ms")))
+                            poolData.metrics.timeouts.increment();
+                    }
+                },timeout,unit);
+            } catch (RuntimeException e) {//scheduler is stopped
+                w.abort(new SQLException("Cannot establish connection"));
+            }
+        }
+        future.whenComplete(new BiConsumer<Connection,Throwable>() {
+            public void accept(Connection c, Throwable ex) {
+                if (ex!=null) w.abort(null);
+            }
+        });
+        return future;
     }
 
     /**
      * Return the connection to free pool. In case of error, it suppressed and warning generated.
+     * Not synchronized: PoolData structures are lock-free, so returns do not block borrowers.
+     * Same as con.close().
      * @param con
      */
-    public synchronized void freeConnection(Connection con) {
+    public void freeConnection(Connection con) {
         try {
-            Date d=(Date)poolData.getLeasedTable().get(con);
-            String debug=(String)poolData.getDebugInfo(con);
-            poolData.removeFromLeased(con);//удаляем коннекцию из списка выданных
-            poolData.addConnToFree(con);
-            logger.debug("Return connection "+poolData.connName(con)+" to pool"+", pool size is "+poolData.getFreeCount()
-                      +", leased "+poolData.getLeasedCount());
-            long conn_time=System.currentTimeMillis()-d.getTime();
+            if (!(con instanceof PooledConnection)) {
+                logger.warn("Connection "+poolData.connName(con)+" is not from pool, ignored");
+                return;
+            }
+            PooledConnection pc=(PooledConnection)con;
+            long leaseTime=pc.leaseTime;
+            long conn_time=System.currentTimeMillis()-leaseTime;
+            //место вызова разбираем только для долгой выдачи
+            String debug=conn_time>15000 ? pc.getDebugInfo() : null;
+            if (!pc.unlease()) {
+                //без блокировки повторный возврат иначе положит коннекцию в пул дважды
+                logger.warn("Connection "+poolData.connName(con)+" is not leased, ignored");
+                return;
+            }
+            poolData.metrics.usageTime.record(conn_time*1000);
+            PoolListener l=poolData.listener;
+            if (l!=null) l.connectionReturned(pc,conn_time);
+            if (pc.isExpired(System.currentTimeMillis())) {
+                //отработавшую свой срок не возвращаем в пул, а заменяем новой
+                pc.closePhysical();
+                poolData.connCreator.fillPool();
+                if (l!=null) l.connectionClosed(pc,PoolListener.MAX_LIFETIME);
+            } else if (poolData.getTotalCount()>poolData.config.maxConn && poolData.getWaitingCount()==0) {
+                //maxConn уменьшили - лишние коннекции закрываем при возврате
+                pc.closePhysical();
+                if (l!=null) l.connectionClosed(pc,PoolListener.SHRINK);
+            } else if (reset(pc)) {
+                poolData.returnedBy(pc);
+                poolData.addConnToFree(pc);
+            }
             if (conn_time>15000)
                 logger.warn("Connection "+poolData.connName(con)
                     + " use_time="+conn_time+" ms"
@@ -158,40 +519,361 @@ public class ConnectionPool {// implements Runnable{
     }
 
     /**
-     * Завершает работу пула - закрывает все коннекции и очищает пул.
-     * Останавливает процесс поддержки.
+     * Restore state changed by borrower. Connection that can't be reset is closed and replaced.
+     * @param pc
+     * @return false if connection is closed
+     */
+    private boolean reset(PooledConnection pc) {
+        try {
+            pc.resetState();
+            return true;
+        } catch (Exception e) {
+            logger.warn("Can't reset connection "+poolData.connName(pc)+", closing it: "+e);
+            pc.closePhysical();
+            poolData.connCreator.fillPool();
+            PoolListener l=poolData.listener;
+            if (l!=null) l.connectionClosed(pc,PoolListener.RESET_FAILED);
+            return false;
+        }
+    }
+
+    private SQLException isShutDown() {
+        return new SQLNonTransientConnectionException("Connection pool is shut down");
+    }
+
+    /**
+     * Завершает работу пула сразу - закрывает все коннекции, в т.ч. выданные, и останавливает процесс поддержки.
+     * То же, что shutdown(0).
      */
     public void destroy() {
+        shutdown(0,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Плавная остановка пула:
+     * 1. новые выдачи и ожидающие в очереди получают SQLNonTransientConnectionException;
+     * 2. ждем возврата выданных коннекций не дольше grace;
+     * 3. все оставшиеся физические коннекции закрываются параллельно, не больше closeParallelism потоков,
+     *    все вместе - не дольше PoolConfig.closeTimeout; зависшие закрытия бросаются в своих (daemon) потоках.
+     * Повторный вызов ничего не делает.
+     * @param grace
+     * @param unit
+     * @return false если не все коннекции вернули за grace или не все закрылись
+     */
+    public boolean shutdown(long grace, TimeUnit unit) {
+        if (!shutdown.compareAndSet(false,true)) return true;
+        long start=System.currentTimeMillis();
         // Stop issuing connections
         poolData.available=false;
+        SQLException reason=isShutDown();
+        poolData.failWaiters(reason);
+        long deadline=System.nanoTime()+unit.toNanos(grace);
+        boolean interrupted=false;
+        while (poolData.getLeasedCount()>0 && System.nanoTime()-deadline<0) {
+            poolData.failWaiters(reason); //встали в очередь, не увидев остановку
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                interrupted=true;
+                break;
+            }
+        }
+        List<PooledConnection> leased=poolData.getLeasedConnections();
+        for (int i=0; i<leased.size(); i++) {
+            PooledConnection con=leased.get(i);
+            logger.warn("Connection "+poolData.connName(con)+" is still leased on shutdown, closing it. debug="
+                    +con.getDebugInfo());
+        }
         // Shut down the background housekeeping thread
         poolData.connManager.stop();
-        Iterator allConnections;
+        poolData.failWaiters(reason);
+        boolean closed=closeAll(poolData.getAllConnections());
+        unregisterMBean();
+        logger.info("Pool shut down in "+(System.currentTimeMillis()-start)+" ms");
+        if (interrupted) Thread.currentThread().interrupt();
+        return leased.isEmpty() && closed;
+    }
 
-        while (poolData.getFreeCount()>0) {
-            Connection con = poolData.getFreeConn();
+    /**
+     * Close physical connections in parallel, by at most closeParallelism threads
+     * @param list
+     * @return false if some of them did not close in closeTimeout
+     */
+    private boolean closeAll(List<PooledConnection> list) {
+        if (list.isEmpty()) return true;
+        PoolConfig cfg=poolData.config;
+        long timeout=cfg.closeTimeout;
+        int n=Math.min(cfg.closeParallelism,list.size());
+        final AtomicInteger threadNo=new AtomicInteger();
+        ThreadPoolExecutor closers=new ThreadPoolExecutor(n,n,0,TimeUnit.MILLISECONDS,new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return poolData.newThread(r,logger.getName()+".closer-"+threadNo.incrementAndGet(),true);
+                    }
+                });
+        List<Future<?>> futures=new ArrayList<Future<?>>(list.size());
+        for (Iterator<PooledConnection> it=list.iterator(); it.hasNext();) {
+            final PooledConnection con=it.next();
+            Runnable close=new Runnable() {
+                public void run() {
+                    if (!con.closePhysical()) return; //закрыта раньше
+                    PoolListener l=poolData.listener;
+                    if (l!=null) l.connectionClosed(con,PoolListener.SHUTDOWN);
+                }
+            };
             try {
-              con.close();
-              logger.debug("Closed connection for pool ");
+                futures.add(closers.submit(close));
+            } catch (RejectedExecutionException e) {//потоков не дают - закрываем сами
+                close.run();
             }
-            catch (SQLException e) {
-              logger.debug("Can't close connection for pool ");
+        }
+        closers.shutdown();
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean interrupted=false;
+        int left=0;
+        for (int i=0; i<futures.size(); i++) {
+            Future<?> f=futures.get(i);
+            try {
+                if (!interrupted) f.get(Math.max(0,deadline-System.nanoTime()),TimeUnit.NANOSECONDS);
+                else if (!f.isDone()) left++;
+            } catch (TimeoutException e) {
+                left++;
+            } catch (InterruptedException e) {
+                interrupted=true;
+                left++;
+            } catch (ExecutionException e) {
+                logger.warn("Can't close connection: "+e.getCause());
             }
         }
+        if (left>0) {
+            //зависшие закрытия бросаем в их daemon потоках, не начатые - отменяем
+            closers.shutdownNow();
+            logger.warn(left+" of "+list.size()+" connections are not closed in "+timeout+" ms, abandoned");
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        return left==0;
+    }
+
+    /**
+     * Изменение текущих параметров
+     */
+    private interface Edit {
+        void apply(PoolConfig.Builder b);
+    }
+
+    /**
+     * Меняет текущие параметры под configLock: одновременные изменения не затирают друг друга
+     * @param edit
+     * @throws IllegalArgumentException if new settings are inconsistent
+     */
+    private void reconfigure(Edit edit) {
+        synchronized (configLock) {
+            PoolConfig.Builder b=poolData.config.toBuilder();
+            edit.apply(b);
+            reconfigure(b.build());
+        }
+    }
+
+    /**
+     * Параметры пула в JMX. Каждый setter - отдельный reconfigure() с одним измененным значением.
+     */
+    private class ConfigControl implements PoolConfigMBean {
+
+        public int getMinSpareConn() {
+            return poolData.config.minSpareConn;
+        }
+
+        public void setMinSpareConn(final int n) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.minSpareConn=n;
+                }
+            });
+        }
+
+        public int getMaxConn() {
+            return poolData.config.maxConn;
+        }
+
+        public void setMaxConn(final int n) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.maxConn=n;
+                }
+            });
+        }
+
+        public int getCreateParallelism() {
+            return poolData.config.createParallelism;
+        }
+
+        public void setCreateParallelism(final int n) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.createParallelism=n;
+                }
+            });
+        }
+
+        public long getConnTimeout() {
+            return poolData.config.connTimeout;
+        }
+
+        public void setConnTimeout(final long ms) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.connTimeout=ms;
+                }
+            });
+        }
+
+        public long getLeakWarnTime() {
+            return poolData.config.leakWarnTime;
+        }
+
+        public void setLeakWarnTime(final long ms) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.leakWarnTime=ms;
+                }
+            });
+        }
+
+        public long getValidationInterval() {
+            return poolData.config.validationInterval;
+        }
+
+        public void setValidationInterval(final long ms) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.validationInterval=ms;
+                }
+            });
+        }
+
+        public long getIdleTimeout() {
+            return poolData.config.idleTimeout;
+        }
+
+        public void setIdleTimeout(final long ms) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.idleTimeout=ms;
+                }
+            });
+        }
+
+        public long getMaxLifetime() {
+            return poolData.config.maxLifetime;
+        }
+
+        public void setMaxLifetime(final long ms) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.maxLifetime=ms;
+                }
+            });
+        }
+
+        public long getCreateTimeout() {
+            return poolData.config.createTimeout;
+        }
+
+        public void setCreateTimeout(final long ms) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.createTimeout=ms;
+                }
+            });
+        }
+
+        public boolean isAdaptiveSizing() {
+            return poolData.config.adaptiveSizing;
+        }
+
+        public void setAdaptiveSizing(final boolean on) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.adaptiveSizing=on;
+                }
+            });
+        }
+
+        public String getTestQuery() {
+            return poolData.config.testQuery;
+        }
+
+        public void setTestQuery(final String sql) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.testQuery=sql==null || sql.trim().length()==0 ? null : sql;
+                }
+            });
+        }
+
+        public int getNetworkTimeout() {
+            return poolData.config.networkTimeout;
+        }
+
+        public void setNetworkTimeout(final int ms) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.networkTimeout=ms;
+                }
+            });
+        }
+
+        public int getBreakerThreshold() {
+            return poolData.config.breakerThreshold;
+        }
+
+        public void setBreakerThreshold(final int n) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.breakerThreshold=n;
+                }
+            });
+        }
+
+        public double getSizerHeadroom() {
+            return poolData.config.sizerHeadroom;
+        }
+
+        public void setSizerHeadroom(final double headroom) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.sizerHeadroom=headroom;
+                }
+            });
+        }
+
+        public int getDebugMode() {
+            return poolData.config.debugMode;
+        }
+
+        public void setDebugMode(final int mode) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.debugMode=mode;
+                }
+            });
+        }
+
+        public int getDebugSampleRate() {
+            return poolData.config.debugSampleRate;
+        }
+
+        public void setDebugSampleRate(final int n) {
+            reconfigure(new Edit() {
+                public void apply(PoolConfig.Builder b) {
+                    b.debugSampleRate=n;
+                }
+            });
+        }
 
-        //очищаем занятые коннекции
-        allConnections = poolData.getLeasedTable().keySet().iterator();
-        while (allConnections.hasNext()) {
-          Connection con = (Connection) allConnections.next();
-          try {
-            con.close();
-            logger.debug("Closed leased connection for pool ");
-          }
-          catch (SQLException e) {
-            logger.debug("Can't close leased connection for pool ");
-          }
+        public String getConfig() {
+            return poolData.config.toString();
         }
-        poolData.getLeasedTable().clear();
     }
 
     /**
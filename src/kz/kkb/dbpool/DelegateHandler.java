@@ -0,0 +1,61 @@
+package kz.kkb.dbpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * Обертка над DatabaseMetaData и ResultSet, выданными через PooledConnection.
+ * getConnection() и getStatement() возвращают обертки пула, а не объекты драйвера,
+ * иначе через них можно добраться до физической коннекции и закрыть ее мимо пула.
+ * ResultSet, полученные от обернутого объекта, тоже оборачиваются.
+ */
+class DelegateHandler implements InvocationHandler {
+
+    private final PooledConnection owner;
+    private final Statement statement;//null для ResultSet из DatabaseMetaData
+    private final Object target;
+
+    private DelegateHandler(PooledConnection owner, Statement statement, Object target) {
+        this.owner=owner;
+        this.statement=statement;
+        this.target=target;
+    }
+
+    static DatabaseMetaData wrap(PooledConnection owner, DatabaseMetaData md) {
+        if (md==null) return null;
+        return (DatabaseMetaData)Proxy.newProxyInstance(PooledConnection.class.getClassLoader(),
+                new Class<?>[]{DatabaseMetaData.class},new DelegateHandler(owner,null,md));
+    }
+
+    static ResultSet wrap(PooledConnection owner, Statement statement, ResultSet rs) {
+        if (rs==null) return null;
+        return (ResultSet)Proxy.newProxyInstance(PooledConnection.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class},new DelegateHandler(owner,statement,rs));
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name=method.getName();
+        if (args==null) {
+            if ("getConnection".equals(name)) return owner;
+            if ("getStatement".equals(name)) return statement;
+            if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+            if ("toString".equals(name)) return target.toString();
+        } else if (args.length==1 && "equals".equals(name)) {
+            return proxy==args[0];
+        }
+        Object result;
+        try {
+            result=method.invoke(target,args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        if (result instanceof ResultSet && method.getReturnType()==ResultSet.class)
+            return wrap(owner,target instanceof ResultSet ? statement : null,(ResultSet)result);
+        return result;
+    }
+}
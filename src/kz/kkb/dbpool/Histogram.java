@@ -0,0 +1,140 @@
+package kz.kkb.dbpool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free гистограмма времен в микросекундах.
+ * Корзины лог-линейные, как в HdrHistogram: 8 корзин на каждую степень двойки,
+ * т.е. погрешность процентиля не больше 12.5% при любом масштабе - от микросекунд до часов.
+ * Запись - инкремент счетчика корзины, без блокировок и выделения памяти (кроме первого расширения LongAdder).
+ * Счетчик корзины - LongAdder, а не ячейка общего массива: почти все выдачи попадают в одну-две корзины,
+ * и потоки расходятся по ячейкам LongAdder вместо одной строки кеша на горячем пути.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS=3;
+    private static final int SUB_COUNT=1<<SUB_BITS;
+    private static final int BUCKETS=(64-SUB_BITS)*SUB_COUNT;
+
+    private final LongAdder[] counts=new LongAdder[BUCKETS];
+    private final LongAdder count=new LongAdder();
+    private final LongAdder sum=new LongAdder();
+    private final AtomicLong max=new AtomicLong();
+
+    public Histogram() {
+        for (int i=0; i<BUCKETS; i++) counts[i]=new LongAdder();
+    }
+
+    /**
+     * Record one value
+     * @param micros value, microseconds. Negative values are recorded as 0
+     */
+    public void record(long micros) {
+        if (micros<0) micros=0;
+        counts[index(micros)].increment();
+        count.increment();
+        sum.add(micros);
+        long m=max.get();
+        while (micros>m && !max.compareAndSet(m,micros)) m=max.get();
+    }
+
+    public void recordNanos(long nanos) {
+        record(nanos/1000);
+    }
+
+    static int index(long v) {
+        if (v<SUB_COUNT) return (int)v;
+        int e=63-Long.numberOfLeadingZeros(v);
+        int sub=(int)(v>>>(e-SUB_BITS)) & (SUB_COUNT-1);
+        return (e-SUB_BITS+1)*SUB_COUNT+sub;
+    }
+
+    /**
+     * Upper bound of the bucket
+     */
+    static long bucketValue(int idx) {
+        if (idx<SUB_COUNT) return idx;
+        int e=idx/SUB_COUNT+SUB_BITS-1;
+        int sub=idx%SUB_COUNT;
+        long low=((long)(SUB_COUNT+sub))<<(e-SUB_BITS);
+        return low+(1L<<(e-SUB_BITS))-1;
+    }
+
+    /**
+     * Value at given percentile, microseconds
+     * @param percentile 0..100
+     * @return 0 if nothing recorded
+     */
+    public long getPercentile(double percentile) {
+        long total=0;
+        long[] c=new long[BUCKETS];
+        for (int i=0; i<BUCKETS; i++) {
+            c[i]=counts[i].sum();
+            total+=c[i];
+        }
+        if (total==0) return 0;
+        long rank=(long)Math.ceil(percentile/100.0*total);
+        if (rank<1) rank=1;
+        long seen=0;
+        for (int i=0; i<BUCKETS; i++) {
+            seen+=c[i];
+            if (seen>=rank) return Math.min(bucketValue(i),max.get());
+        }
+        return max.get();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Sum of all values, microseconds
+     */
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Mean value, microseconds
+     */
+    public double getMean() {
+        long n=count.sum();
+        return n==0 ? 0 : (double)sum.sum()/n;
+    }
+
+    /**
+     * Add all values recorded in other histogram, e.g. to merge per-thread histograms
+     * @param other
+     */
+    public void add(Histogram other) {
+        for (int i=0; i<BUCKETS; i++) {
+            long c=other.counts[i].sum();
+            if (c!=0) counts[i].add(c);
+        }
+        count.add(other.count.sum());
+        sum.add(other.sum.sum());
+        long om=other.max.get();
+        long m=max.get();
+        while (om>m && !max.compareAndSet(m,om)) m=max.get();
+    }
+
+    /**
+     * Clear all counters. Values recorded concurrently may be partially lost.
+     */
+    public void reset() {
+        for (int i=0; i<BUCKETS; i++) counts[i].reset();
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    public String toString() {
+        return "count="+getCount()+", mean="+Math.round(getMean())+"us, p50="+getPercentile(50)
+                +"us, p99="+getPercentile(99)+"us, max="+getMax()+"us";
+    }
+}
@@ -0,0 +1,129 @@
+package kz.kkb.dbpool;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <pre>
+ * Таймер выданных коннекций - хешированное колесо (hashed timing wheel) с шагом 100 ms.
+ * Срабатывает на двух порогах от момента выдачи:
+ *   leakWarnTime - предупреждение "похоже на утечку" со стеком выдачи (если он был запомнен, см. debugMode),
+ *   connTimeout  - коннекция отбирается и физически закрывается (в потоке ConnCreator.closer, не в планировщике).
+ * Каждая коннекция стоит в колесе не больше одного раза (флаг inWheel), поэтому память ограничена числом
+ * коннекций, а выдача и возврат стоят O(1): выдача ставит коннекцию в колесо, только если ее там нет,
+ * возврат ничего не делает. Когда колесо доходит до коннекции, оно смотрит на ее текущую выдачу
+ * (номер выдачи leaseSeq): возвращенная снимается, выданная заново переставляется на свой срок.
+ * Постановка в колесо выделяет узел очереди слота; выдача коннекции, уже стоящей в колесе, не выделяет ничего.
+ * Шаг колеса выполняется планировщиком ConnManager.
+ * </pre>
+ */
+class LeaseWheel implements Runnable {
+
+    static final long TICK=100;//ms
+    private static final int SLOTS=1024;//степень двойки, оборот ~100 s
+    private static final int MASK=SLOTS-1;
+
+    private final PoolData poolData;
+    private final ConcurrentLinkedQueue<PooledConnection>[] slots;
+    private volatile long lastTick=System.currentTimeMillis()/TICK;//последний обработанный шаг
+
+    @SuppressWarnings("unchecked")
+    LeaseWheel(PoolData poolData) {
+        this.poolData=poolData;
+        slots=(ConcurrentLinkedQueue<PooledConnection>[])new ConcurrentLinkedQueue<?>[SLOTS];
+        for (int i=0; i<SLOTS; i++) slots[i]=new ConcurrentLinkedQueue<PooledConnection>();
+    }
+
+    /**
+     * Connection is leased: put it into the wheel unless it is there already
+     * @param conn
+     */
+    void leased(PooledConnection conn) {
+        PoolConfig cfg=poolData.config;
+        if (cfg.connTimeout<=0 && cfg.leakWarnTime<=0) return;
+        if (conn.inWheel.compareAndSet(false,true)) fire(conn,System.currentTimeMillis());
+    }
+
+    /**
+     * One step of the wheel, processes all ticks passed since the previous run
+     */
+    public void run() {
+        try {
+            long now=System.currentTimeMillis();
+            long nowTick=now/TICK;
+            long t=lastTick;
+            //после долгой паузы достаточно одного оборота: в слоте лежат все коннекции с его остатком
+            if (nowTick-t>SLOTS) t=nowTick-SLOTS;
+            while (t<nowTick) {
+                t++;
+                for (Iterator<PooledConnection> it=slots[(int)(t & MASK)].iterator(); it.hasNext();) {
+                    PooledConnection conn=it.next();
+                    if (conn.wheelTick>t) continue; //следующий оборот
+                    it.remove();
+                    fire(conn,now);
+                }
+                lastTick=t;
+            }
+        } catch (Exception e) {
+            poolData.logger.error("Lease timer error: ",e);
+        }
+    }
+
+    /**
+     * Act on connection owned by the wheel: warn, reclaim, reschedule or drop it
+     */
+    private void fire(PooledConnection conn, long now) {
+        while (true) {
+            if (!conn.isLeased()) {
+                conn.inWheel.set(false);
+                //выдали снова, пока снимали: ставит в колесо тот, кто выиграет флаг
+                if (!conn.isLeased() || !conn.inWheel.compareAndSet(false,true)) return;
+                continue;
+            }
+            long seq=conn.leaseSeq;
+            long leaseTime=conn.leaseTime;
+            PoolConfig cfg=poolData.config;
+            long warn=cfg.leakWarnTime;
+            long reclaim=cfg.connTimeout;
+            boolean warnPending=warn>0 && conn.warnedSeq!=seq && (reclaim<=0 || warn<reclaim);
+            long due;
+            if (warnPending) due=leaseTime+warn;
+            else if (reclaim>0) due=leaseTime+reclaim;
+            else {//для этой выдачи больше ничего не ждем
+                conn.inWheel.set(false);
+                return;
+            }
+            if (now<due) {
+                schedule(conn,due);
+                return;
+            }
+            if (warnPending) {
+                conn.warnedSeq=seq;
+                if (conn.leaseSeq==seq && conn.isLeased()) {
+                    poolData.metrics.leakWarnings.increment();
+                    poolData.logger.warn("Connection leak suspected: "+poolData.connName(conn)+" is leased for "
+                            +(now-leaseTime)+" ms, debug="+conn.getDebugInfo(),conn.leaseStack);
+                }
+                continue;
+            }
+            String debug=conn.getDebugInfo();
+            Throwable stack=conn.leaseStack;
+            if (conn.reclaim(seq,poolData.connCreator.closer)) {
+                poolData.metrics.leaseTimeouts.increment();
+                poolData.logger.warn("Lease timeout! killing connection "+poolData.connName(conn)+", debug="+debug,stack);
+                PoolListener l=poolData.listener;
+                if (l!=null) l.connectionClosed(conn,PoolListener.RECLAIMED);
+            }
+            conn.inWheel.set(false);
+            return;
+        }
+    }
+
+    private void schedule(PooledConnection conn, long due) {
+        long tick=(due+TICK-1)/TICK;
+        long last=lastTick;
+        if (tick<=last) tick=last+1;
+        conn.wheelTick=tick;
+        slots[(int)(tick & MASK)].add(conn);
+    }
+}
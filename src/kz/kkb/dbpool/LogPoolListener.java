@@ -0,0 +1,56 @@
+package kz.kkb.dbpool;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * События пула в лог log4j пула, как раньше писал сам пул.
+ * Строки собираются только если уровень лога включен.
+ * "Pool is empty" пишется не на каждый промах, а сводкой не чаще раза в emptyReportInterval.
+ */
+public class LogPoolListener implements PoolListener {
+
+    /** how often "Pool is empty" summary is logged, ms, default=10 s */
+    public long emptyReportInterval=10*1000;
+
+    private final PoolData poolData;
+    private final LongAdder emptyCount=new LongAdder();
+    private final AtomicLong lastEmptyReport=new AtomicLong();
+
+    public LogPoolListener(PoolData poolData) {
+        this.poolData=poolData;
+    }
+
+    public void connectionLeased(PooledConnection conn, long borrowNanos) {
+        if (!poolData.logger.isDebugEnabled()) return;
+        poolData.logger.debug("Lease connection "+poolData.connName(conn)+", pool size is "+poolData.getFreeCount()
+                +", leased "+poolData.getLeasedCount());
+    }
+
+    public void connectionReturned(PooledConnection conn, long useMillis) {
+        if (!poolData.logger.isDebugEnabled()) return;
+        poolData.logger.debug("Return connection "+poolData.connName(conn)+" to pool"+", pool size is "+poolData.getFreeCount()
+                +", leased "+poolData.getLeasedCount());
+    }
+
+    public void poolEmpty() {
+        if (!poolData.logger.isInfoEnabled()) return;
+        emptyCount.increment();
+        long now=System.currentTimeMillis();
+        long last=lastEmptyReport.get();
+        if (now-last<emptyReportInterval || !lastEmptyReport.compareAndSet(last,now)) return;
+        long n=emptyCount.sumThenReset();
+        poolData.logger.info("Pool is empty: "+n+" times"+(last==0 ? "" : " in last "+(now-last)+" ms")
+                +", waiting "+poolData.getWaitingCount()+", leased "+poolData.getLeasedCount());
+    }
+
+    public void connectionCreated(PooledConnection conn, long createMillis) {
+        if (!poolData.logger.isInfoEnabled()) return;
+        poolData.logger.info("Spare connection created "+poolData.connName(conn)+" in "+createMillis+" ms");
+    }
+
+    public void connectionClosed(PooledConnection conn, String reason) {
+        if (!poolData.logger.isDebugEnabled()) return;
+        poolData.logger.debug("Connection "+poolData.connName(conn)+" closed: "+reason);
+    }
+}
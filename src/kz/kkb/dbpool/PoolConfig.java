@@ -0,0 +1,195 @@
+package kz.kkb.dbpool;
+
+/**
+ * Неизменяемый набор параметров пула. Пул держит один текущий PoolConfig (PoolData.getConfig())
+ * и заменяет его целиком одной записью volatile: ConnectionPool.reconfigure(). Каждая операция пула
+ * читает ссылку один раз и видит согласованные значения - например minSpareConn и maxConn
+ * из одного набора, даже если параллельно пул перенастраивают.
+ * Задается в конструкторе ConnectionPool, новый набор собирается через Builder:
+ * <pre>
+ *   PoolConfig.Builder b=pool.getConfig().toBuilder();
+ *   b.maxConn=80;
+ *   pool.reconfigure(b.build());
+ * </pre>
+ * Такой reconfigure() заменяет и то, что поменяли параллельно после getConfig().
+ * Основные параметры доступны через JMX (kz.kkb.dbpool:type=PoolConfig,name={poolName}),
+ * каждый setter там меняет одно значение текущего набора под блокировкой reconfigure(),
+ * так что одновременные setter-ы не затирают друг друга. Времена - в миллисекундах, если не сказано иное.
+ */
+public final class PoolConfig {
+
+    /** minimum spare connections, default=6. NOTE! actual free connections varies form min to min*2 */
+    public final int minSpareConn;
+    /** maximum connections, default=50 */
+    public final int maxConn;
+    /** connections opened by ConnectionPool.warmUp(), if more than minSpareConn; kept until idleTimeout. default=0 */
+    public final int initialSize;
+    /** how many connections may be opened in parallel, default=3 */
+    public final int createParallelism;
+    /** connection leased longer is reclaimed and closed, 0 - never. default=60 s */
+    public final long connTimeout;
+    /** connection leased longer is reported as possible leak with the lease stack, 0 - off (default) */
+    public final long leakWarnTime;
+    /** connection returned to pool less than validationInterval ago is leased without test, 0 - test always */
+    public final long validationInterval;
+    /** timeout for Connection.isValid(), seconds, default=5 */
+    public final int validationTimeout;
+    /** free connection unused for idleTimeout is closed (while more than spare are free), 0 - never. default=10 min */
+    public final long idleTimeout;
+    /** connection older than maxLifetime is closed when free and replaced by new one, 0 - unlimited. default=30 min */
+    public final long maxLifetime;
+    /** DriverManager login timeout for new connections, seconds, default=20. Note: DriverManager setting is JVM-wide */
+    public final int loginTimeout;
+    /** attempt to open connection (login and test) is abandoned after createTimeout, 0 - never. default=30 s */
+    public final long createTimeout;
+    /** JDBC network timeout set on new connections, 0 - driver default */
+    public final int networkTimeout;
+    /** failed connection creations or tests in a row to open circuit breaker, 0 - no breaker. default=5 */
+    public final int breakerThreshold;
+    /** first pause before probing the database when breaker is open, default=500 */
+    public final long breakerMinBackoff;
+    /** maximum pause between probes, default=30 s */
+    public final long breakerMaxBackoff;
+    /** number of free connections follows demand (see PoolSizer) between minSpareConn and maxConn. default=false */
+    public final boolean adaptiveSizing;
+    /** adaptive sizing keeps demand*(1+sizerHeadroom) connections, default=0.2 */
+    public final double sizerHeadroom;
+    /** how to track caller of getConnection(): PoolData.DEBUG_OFF, DEBUG_SAMPLED (default) or DEBUG_FULL */
+    public final int debugMode;
+    /** in DEBUG_SAMPLED mode caller is remembered for 1 of debugSampleRate leases, default=100 */
+    public final int debugSampleRate;
+    /** prepared statements cached per connection, 0 - no cache (default). Applies to caches created later */
+    public final int stmtCacheSize;
+    /** ConnectionPool.shutdown() waits for physical close of connections at most closeTimeout, default=5 s */
+    public final long closeTimeout;
+    /** threads closing connections on shutdown, default=4 */
+    public final int closeParallelism;
+    /** test query, null - test with Connection.isValid() (or PoolData.sTestQuery if driver does not support it) */
+    public final String testQuery;
+
+    /** all defaults */
+    static final PoolConfig DEFAULTS=new Builder().build();
+
+    private PoolConfig(Builder b) {
+        minSpareConn=b.minSpareConn;
+        maxConn=b.maxConn;
+        initialSize=b.initialSize;
+        createParallelism=b.createParallelism;
+        connTimeout=b.connTimeout;
+        leakWarnTime=b.leakWarnTime;
+        validationInterval=b.validationInterval;
+        validationTimeout=b.validationTimeout;
+        idleTimeout=b.idleTimeout;
+        maxLifetime=b.maxLifetime;
+        loginTimeout=b.loginTimeout;
+        createTimeout=b.createTimeout;
+        networkTimeout=b.networkTimeout;
+        breakerThreshold=b.breakerThreshold;
+        breakerMinBackoff=b.breakerMinBackoff;
+        breakerMaxBackoff=b.breakerMaxBackoff;
+        adaptiveSizing=b.adaptiveSizing;
+        sizerHeadroom=b.sizerHeadroom;
+        debugMode=b.debugMode;
+        debugSampleRate=b.debugSampleRate;
+        stmtCacheSize=b.stmtCacheSize;
+        closeTimeout=b.closeTimeout;
+        closeParallelism=b.closeParallelism;
+        testQuery=b.testQuery;
+    }
+
+    public Builder toBuilder() {
+        Builder b=new Builder();
+        b.minSpareConn=minSpareConn;
+        b.maxConn=maxConn;
+        b.initialSize=initialSize;
+        b.createParallelism=createParallelism;
+        b.connTimeout=connTimeout;
+        b.leakWarnTime=leakWarnTime;
+        b.validationInterval=validationInterval;
+        b.validationTimeout=validationTimeout;
+        b.idleTimeout=idleTimeout;
+        b.maxLifetime=maxLifetime;
+        b.loginTimeout=loginTimeout;
+        b.createTimeout=createTimeout;
+        b.networkTimeout=networkTimeout;
+        b.breakerThreshold=breakerThreshold;
+        b.breakerMinBackoff=breakerMinBackoff;
+        b.breakerMaxBackoff=breakerMaxBackoff;
+        b.adaptiveSizing=adaptiveSizing;
+        b.sizerHeadroom=sizerHeadroom;
+        b.debugMode=debugMode;
+        b.debugSampleRate=debugSampleRate;
+        b.stmtCacheSize=stmtCacheSize;
+        b.closeTimeout=closeTimeout;
+        b.closeParallelism=closeParallelism;
+        b.testQuery=testQuery;
+        return b;
+    }
+
+    public String toString() {
+        return "minSpareConn="+minSpareConn+", maxConn="+maxConn+", initialSize="+initialSize
+                +", createParallelism="+createParallelism+", connTimeout="+connTimeout+", leakWarnTime="+leakWarnTime
+                +", validationInterval="+validationInterval+", validationTimeout="+validationTimeout
+                +", idleTimeout="+idleTimeout+", maxLifetime="+maxLifetime+", loginTimeout="+loginTimeout
+                +", createTimeout="+createTimeout+", networkTimeout="+networkTimeout
+                +", breakerThreshold="+breakerThreshold+", breakerMinBackoff="+breakerMinBackoff
+                +", breakerMaxBackoff="+breakerMaxBackoff+", adaptiveSizing="+adaptiveSizing
+                +", sizerHeadroom="+sizerHeadroom+", debugMode="+debugMode+", debugSampleRate="+debugSampleRate
+                +", stmtCacheSize="+stmtCacheSize+", closeTimeout="+closeTimeout+", closeParallelism="+closeParallelism+", testQuery="+testQuery;
+    }
+
+    /**
+     * Изменяемая заготовка PoolConfig со значениями по умолчанию.
+     */
+    public static class Builder {
+        public int minSpareConn=6;
+        public int maxConn=50;
+        public int initialSize=0;
+        public int createParallelism=3;
+        public long connTimeout=60*1000;
+        public long leakWarnTime=0;
+        public long validationInterval=500;
+        public int validationTimeout=5;
+        public long idleTimeout=10*60*1000;
+        public long maxLifetime=30*60*1000;
+        public int loginTimeout=20;
+        public long createTimeout=30*1000;
+        public int networkTimeout=0;
+        public int breakerThreshold=5;
+        public long breakerMinBackoff=500;
+        public long breakerMaxBackoff=30*1000;
+        public boolean adaptiveSizing=false;
+        public double sizerHeadroom=0.2;
+        public int debugMode=PoolData.DEBUG_SAMPLED;
+        public int debugSampleRate=100;
+        public int stmtCacheSize=0;
+        public long closeTimeout=5*1000;
+        public int closeParallelism=4;
+        public String testQuery=null;
+
+        /**
+         * @return
+         * @throws IllegalArgumentException if settings are inconsistent, e.g. minSpareConn>maxConn
+         */
+        public PoolConfig build() {
+            if (maxConn<1) throw new IllegalArgumentException("maxConn must be positive: "+maxConn);
+            if (minSpareConn<0 || minSpareConn>maxConn)
+                throw new IllegalArgumentException("minSpareConn must be in 0.."+maxConn+": "+minSpareConn);
+            if (initialSize<0) throw new IllegalArgumentException("initialSize must not be negative: "+initialSize);
+            if (createParallelism<1) throw new IllegalArgumentException("createParallelism must be positive: "+createParallelism);
+            if (closeParallelism<1) throw new IllegalArgumentException("closeParallelism must be positive: "+closeParallelism);
+            if (connTimeout<0 || leakWarnTime<0 || validationInterval<0 || validationTimeout<0 || idleTimeout<0
+                    || maxLifetime<0 || loginTimeout<0 || createTimeout<0 || networkTimeout<0 || breakerThreshold<0
+                    || stmtCacheSize<0 || closeTimeout<0)
+                throw new IllegalArgumentException("timeouts, thresholds and sizes must not be negative");
+            if (breakerMinBackoff<1 || breakerMaxBackoff<breakerMinBackoff)
+                throw new IllegalArgumentException("breaker backoff must be 1<=min<=max: "+breakerMinBackoff+".."+breakerMaxBackoff);
+            if (!(sizerHeadroom>=0)) throw new IllegalArgumentException("sizerHeadroom must not be negative: "+sizerHeadroom);
+            if (debugMode<PoolData.DEBUG_OFF || debugMode>PoolData.DEBUG_FULL)
+                throw new IllegalArgumentException("unknown debugMode: "+debugMode);
+            if (debugSampleRate<1) throw new IllegalArgumentException("debugSampleRate must be positive: "+debugSampleRate);
+            if (testQuery!=null && testQuery.trim().length()==0) throw new IllegalArgumentException("empty testQuery");
+            return new PoolConfig(this);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package kz.kkb.dbpool;
+
+/**
+ * JMX интерфейс параметров пула (kz.kkb.dbpool:type=PoolConfig,name={poolName}).
+ * Каждый setter применяет новый PoolConfig через ConnectionPool.reconfigure(). Времена - в миллисекундах.
+ */
+public interface PoolConfigMBean {
+
+    int getMinSpareConn();
+    void setMinSpareConn(int n);
+    int getMaxConn();
+    void setMaxConn(int n);
+    int getCreateParallelism();
+    void setCreateParallelism(int n);
+    long getConnTimeout();
+    void setConnTimeout(long ms);
+    long getLeakWarnTime();
+    void setLeakWarnTime(long ms);
+    long getValidationInterval();
+    void setValidationInterval(long ms);
+    long getIdleTimeout();
+    void setIdleTimeout(long ms);
+    long getMaxLifetime();
+    void setMaxLifetime(long ms);
+    long getCreateTimeout();
+    void setCreateTimeout(long ms);
+    boolean isAdaptiveSizing();
+    void setAdaptiveSizing(boolean on);
+    String getTestQuery();
+    void setTestQuery(String sql);
+    int getNetworkTimeout();
+    void setNetworkTimeout(int ms);
+    int getBreakerThreshold();
+    void setBreakerThreshold(int n);
+    double getSizerHeadroom();
+    void setSizerHeadroom(double headroom);
+    /** 0 - off, 1 - sampled, 2 - full, see PoolData.DEBUG_* */
+    int getDebugMode();
+    void setDebugMode(int mode);
+    int getDebugSampleRate();
+    void setDebugSampleRate(int n);
+
+    /** all settings as text */
+    String getConfig();
+}
@@ -2,10 +2,17 @@ package kz.kkb.dbpool;
 
 import org.apache.log4j.Logger;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.sql.Connection;
+import java.sql.SQLException;
 
 /**
  * Содержит набор данных для данного пула.
@@ -13,40 +20,274 @@ import java.sql.Connection;
  */
 public class PoolData {
     public Logger logger; //весь лог пула пишется в один логгер
-    public long lastConnCreatorTime; //время последнего срабатывания ConnCreator, проверяется от его зависания
+    public long lastConnCreatorTime; //время последнего цикла поддержки ConnCreator
     public int lastNewConnTime; //время последнего создания коннекции, ms
     public String URL;
     public String user;
     public String password;
     public String driverName;
-    public long connTimeout=60*1000; //60 seconds
     public ConnectionPool dbpool;//указатель на свой пул
-    public String sTestQuery="SELECT 1"; //запрос для тестов  (MySQL и MSSQL , oracle requires FROM DUAL)
+    /** запрос для тестов, если драйвер не поддерживает isValid() и PoolConfig.testQuery не задан (MySQL и MSSQL, oracle requires FROM DUAL) */
+    public volatile String sTestQuery="SELECT 1";
     /** указывает выдавать ли лог */
     public boolean isLog=true;
-    /** minimum spare connections, default=6. NOTE! actual free connections varies form min to min*2 */
-    public int minSpareConn=6;
-    /** maximum connections, default=50 */
-    public int maxConn=50;
-
-    private ArrayList freeConnections=new ArrayList();//пул свободных коннекций
-    private Hashtable leasedConnections=new Hashtable();//пул выданных коннекций
-    // Отладочная информация использкется для опроса какие коннекции выполняют долгие запросы или висят.
-    private Hashtable leasedDebugInfo=new Hashtable();//сюда ложим отладочную информацию о выданных коннекциях
-    public boolean available=true;//флаг разрешения на выдачу коннекций
+    /** test with JDBC4 Connection.isValid(). Switched off automatically if driver does not support it */
+    public volatile boolean useIsValid=true;
+
+    public static final int DEBUG_OFF=0;     //не запоминать, кто взял коннекцию
+    public static final int DEBUG_SAMPLED=1; //запоминать у каждой debugSampleRate-й выдачи
+    public static final int DEBUG_FULL=2;    //запоминать всегда
+    /**
+     * factory of pool threads (manager, creator and connection opening), e.g. Thread.ofVirtual().factory().
+     * null - platform threads (default). Set before pool threads start, i.e. via ConnectionPool constructor
+     */
+    public ThreadFactory threadFactory;
+    // Параметры пула. Заменяются только целиком (ConnectionPool.reconfigure), поэтому
+    // операция, прочитавшая ссылку один раз, видит согласованный набор значений.
+    volatile PoolConfig config=PoolConfig.DEFAULTS;
+
+    // Пул свободных коннекций, разбитый на партиции, чтобы потоки не толкались на одной вершине стека.
+    // Каждая партиция - lock-free стек: выдаем последнюю возвращенную (LIFO), как и раньше с ArrayList.
+    // Поток берет из своей партиции (по id потока), при пустой - из чужих; возвращает в свою.
+    // ConcurrentLinkedDeque.size() - O(n), поэтому количество ведем отдельным счетчиком.
+    private volatile ConcurrentLinkedDeque<PooledConnection>[] partitions=newPartitions(0);
+    private AtomicInteger freeCount=new AtomicInteger();
+    private AtomicInteger nextPartition=new AtomicInteger();//для новых коннекций - по кругу
+    // последняя коннекция, которую поток вернул в пул: ее он получит первой (кеш statement-ов, состояние сессии)
+    private final ThreadLocal<WeakReference<PooledConnection>> lastUsed=new ThreadLocal<WeakReference<PooledConnection>>();
+    // Очередь потоков, ожидающих коннекцию (FIFO). Возвращенная коннекция отдается самому старому.
+    private ConcurrentLinkedQueue<ConnWaiter> waiters=new ConcurrentLinkedQueue<ConnWaiter>();
+    private AtomicInteger waitingCount=new AtomicInteger();
+    private AtomicInteger pendingCount=new AtomicInteger();//коннекции в процессе создания
+    // Разрешения на физические коннекции: свободные + выданные + создаваемые.
+    // Берется до открытия коннекции и возвращается при ее закрытии, поэтому maxConn не превышается
+    // без общей блокировки, как бы ни пересекались выдача, возврат и создание.
+    private AtomicInteger totalCount=new AtomicInteger();
+    // Все открытые коннекции пула. Меняется только при создании и закрытии физической коннекции,
+    // выдача и возврат сюда не пишут - время и отладочная информация выдачи хранятся в PooledConnection.
+    private CopyOnWriteArrayList<PooledConnection> allConnections=new CopyOnWriteArrayList<PooledConnection>();
+    private AtomicInteger leasedCount=new AtomicInteger();
+    private AtomicInteger createFailures=new AtomicInteger();//неудачные создания подряд
+    public volatile boolean available=true;//флаг разрешения на выдачу коннекций
     public ConnManager connManager;
     public ConnCreator connCreator;
     public ConnectionPool connPool;
-    public int hangCounter=0;
+    public int hangCounter=0;//попытки открыть коннекцию, снятые по createTimeout
     public StringBuffer hangLog=new StringBuffer();
+    /** счетчики и гистограммы пула, см. также JMX kz.kkb.dbpool:type=ConnectionPool */
+    public final PoolMetrics metrics=new PoolMetrics(this);
+    final CircuitBreaker breaker=new CircuitBreaker(this);
+    final LeaseWheel leaseWheel=new LeaseWheel(this);
+    final PoolSizer sizer=new PoolSizer(this);
+    /** receiver of pool events (lease, return, pool empty...), null - no events. default - log4j */
+    public volatile PoolListener listener=new LogPoolListener(this);
     /**
      * Adding connection to "free table". Connection is not tested.
+     * If some thread waits for connection, it is handed to the oldest waiter directly.
+     * @param conn
+     */
+    public void addConnToFree(PooledConnection conn) {
+        if (handOff(conn)) return;
+        pushFree(conn);
+        //ожидающий мог встать в очередь пока мы клали коннекцию в пул - перепроверяем
+        while (!waiters.isEmpty()) {
+            PooledConnection c=pollFree();
+            if (c==null) break;
+            if (!handOff(c)) {
+                pushFree(c);
+                break;
+            }
+        }
+    }
+
+    /**
+     * Give connection to the oldest waiting thread
      * @param conn
+     * @return false if nobody waits
      */
-    public void addConnToFree(Connection conn) {
-        synchronized (freeConnections) {
-            freeConnections.add(conn);
+    private boolean handOff(PooledConnection conn) {
+        ConnWaiter w;
+        while ((w=waiters.poll())!=null) {
+            if (w.offer(conn)) return true;
         }
+        return false;
+    }
+
+    /**
+     * Wait for a connection returned to pool or created by ConnCreator.
+     * Connection is not tested and not leased.
+     * Unlike the fast path (free connection available), waiting allocates a ConnWaiter and a queue node.
+     * @param timeoutNanos
+     * @return connection or null if timeout expired
+     */
+    public PooledConnection waitFreeConn(long timeoutNanos) {
+        long deadline=System.nanoTime()+timeoutNanos;
+        ConnWaiter w=new ConnWaiter();
+        waitingCount.incrementAndGet();
+        try {
+            waiters.add(w);
+            //коннекция могла вернуться до того как мы встали в очередь
+            PooledConnection conn=pollFree();
+            if (conn!=null) {
+                if (w.cancel()) {
+                    waiters.remove(w);
+                    return conn;
+                }
+                //нам уже отдали другую - лишнюю возвращаем
+                addConnToFree(conn);
+                return w.take();
+            }
+            if (connCreator!=null) connCreator.fillPool();//нас стало больше - создаем коннекции под ожидающих
+            conn=w.await(deadline);
+            if (conn==null) waiters.remove(w);
+            return conn;
+        } finally {
+            waitingCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Queue asynchronous waiter. It gets connection through AsyncConnWaiter.handedOver()
+     * in the thread that returns or creates the connection.
+     * @param w
+     */
+    void waitAsync(AsyncConnWaiter w) {
+        waitingCount.incrementAndGet();
+        waiters.add(w);
+        //коннекция могла вернуться до того как мы встали в очередь - отдаем ее по очереди
+        PooledConnection conn=pollFree();
+        if (conn!=null) addConnToFree(conn);
+        if (connCreator!=null) connCreator.fillPool();
+    }
+
+    /**
+     * Asynchronous waiter got its connection
+     */
+    void waiterDone() {
+        waitingCount.decrementAndGet();
+    }
+
+    /**
+     * Asynchronous waiter is cancelled
+     * @param w
+     */
+    void removeWaiter(AsyncConnWaiter w) {
+        waiters.remove(w);
+        waitingCount.decrementAndGet();
+    }
+
+    /**
+     * Get count of threads waiting for connection
+     * @return
+     */
+    public int getWaitingCount() {
+        return waitingCount.get();
+    }
+
+    /**
+     * Get count of connections being opened now
+     * @return
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    boolean casPendingCount(int expect, int update) {
+        return pendingCount.compareAndSet(expect,update);
+    }
+
+    void incPendingCount() {
+        pendingCount.incrementAndGet();
+    }
+
+    void decPendingCount() {
+        pendingCount.decrementAndGet();
+    }
+
+    /**
+     * Take a permit for one more physical connection
+     * @return false if maxConn connections are open or being opened
+     */
+    boolean reservePermit() {
+        int max=config.maxConn;
+        while (true) {
+            int total=totalCount.get();
+            if (total>=max) return false;
+            if (totalCount.compareAndSet(total,total+1)) return true;
+        }
+    }
+
+    /**
+     * Give back the permit of closed connection (or of failed creation).
+     * Waiting threads get a chance to have a new connection created.
+     */
+    void releasePermit() {
+        totalCount.decrementAndGet();
+        if (waitingCount.get()>0 && connCreator!=null) connCreator.fillPool();
+    }
+
+    /**
+     * Count creation result: success resets the count of consecutive failures
+     * @param success
+     */
+    void createResult(boolean success) {
+        if (success) {
+            if (createFailures.get()!=0) createFailures.set(0);
+            breaker.onSuccess();
+        } else {
+            createFailures.incrementAndGet();
+            breaker.onFailure();
+        }
+    }
+
+    /**
+     * Wake all waiting threads with an error, e.g. when the database is down
+     * @param reason
+     */
+    void failWaiters(SQLException reason) {
+        ConnWaiter w;
+        while ((w=waiters.poll())!=null) w.fail(reason);
+    }
+
+    /**
+     * Circuit breaker state: CLOSED, OPEN or HALF_OPEN
+     * @return
+     */
+    public String getCircuitState() {
+        return breaker.getState();
+    }
+
+    /**
+     * Current settings of the pool, see ConnectionPool.reconfigure()
+     * @return
+     */
+    public PoolConfig getConfig() {
+        return config;
+    }
+
+    /**
+     * Free connections the pool keeps: minSpareConn, or the target of PoolSizer if adaptiveSizing is on
+     * @return
+     */
+    public int getSpareTarget() {
+        return sizer.getSpareTarget();
+    }
+
+    /**
+     * Get count of consecutive failed attempts to open connection, 0 after successful one
+     * @return
+     */
+    public int getConsecutiveCreateFailures() {
+        return createFailures.get();
+    }
+
+    /**
+     * Get count of all physical connections: free, leased and being opened.
+     * Never exceeds maxConn (unless maxConn was decreased at runtime).
+     * @return
+     */
+    public int getTotalCount() {
+        return totalCount.get();
     }
 
     /**
@@ -54,38 +295,50 @@ public class PoolData {
      * @return
      */
     public int getFreeCount() {
-        int i=0;
-        synchronized (freeConnections) {
-            i=freeConnections.size();
-        }
-        return i;
+        return freeCount.get();
     }
 
     /**
-     * Put connection into "leased table", add debug info
+     * Register newly created connection in the pool
      * @param conn
-     * @param sDebugInfo
      */
-    public void addConnToLeased(Connection conn,String sDebugInfo) {
-        leasedConnections.put(conn,new Date());
-        if (sDebugInfo!=null) leasedDebugInfo.put(conn.toString(),sDebugInfo);
+    void register(PooledConnection conn) {
+        conn.partition=(nextPartition.getAndIncrement() & Integer.MAX_VALUE)%partitions.length;
+        allConnections.add(conn);
     }
 
     /**
-     * Remove connection from "leased table", debug info is also deleted
+     * Forget physically closed connection
      * @param conn
      */
-    public void removeFromLeased(Connection conn) {
-        leasedConnections.remove(conn);
-        leasedDebugInfo.remove(conn.toString());
+    void unregister(PooledConnection conn) {
+        allConnections.remove(conn);
+    }
+
+    void leased(int delta) {
+        leasedCount.addAndGet(delta);
     }
 
     /**
-     * Obtain "leased table". Warning! don't make direct modifications in table!
+     * Get all open connections of the pool, free and leased.
+     * Returned list is a snapshot and is not changed by the pool.
      * @return
      */
-    public Hashtable getLeasedTable() {
-        return leasedConnections;
+    public List<PooledConnection> getAllConnections() {
+        return new ArrayList<PooledConnection>(allConnections);
+    }
+
+    /**
+     * Get leased connections. Returned list is a snapshot.
+     * @return
+     */
+    public List<PooledConnection> getLeasedConnections() {
+        List<PooledConnection> list=new ArrayList<PooledConnection>();
+        for (Iterator<PooledConnection> it=allConnections.iterator(); it.hasNext();) {
+            PooledConnection conn=it.next();
+            if (conn.isLeased()) list.add(conn);
+        }
+        return list;
     }
 
     /**
@@ -93,7 +346,7 @@ public class PoolData {
      * @return
      */
     public int getLeasedCount() {
-        return leasedConnections.size();
+        return leasedCount.get();
     }
 
     /**
@@ -103,39 +356,155 @@ public class PoolData {
      * @return
      */
     public long getLeaseTime(Connection conn) {
-        Date d=(Date)leasedConnections.get(conn);
-        if (d==null) return 0;
-        return d.getTime();
+        if (!(conn instanceof PooledConnection)) return 0;
+        PooledConnection pc=(PooledConnection)conn;
+        return pc.isLeased() ? pc.leaseTime : 0;
     }
     /**
      * Get debug info for leased connection.
-     * Return null if no debug info available or connection is not in leased table
+     * Return "null" if no debug info available or connection is not leased
      * @param conn
      * @return
      */
     public String getDebugInfo(Connection conn) {
-        return ""+leasedDebugInfo.get(conn.toString());
+        if (!(conn instanceof PooledConnection)) return "null";
+        return ""+((PooledConnection)conn).getDebugInfo();
     }
 
     /**
-     * Get free connection from pool. Do not add conn to "leased table".
-     * Conenction will be added to leased after testing in ConnCreator.
-     * Test can hangs, so it placed in ConnCreator.
+     * Get free connection from pool. Connection is not leased yet.
+     * Conenction will be leased after testing.
+     * The connection last returned by current thread is preferred, then the thread's partition.
      * @return
      */
-    public Connection getFreeConn() {
-        Connection conn=null;
-        synchronized (freeConnections) {
-            if (!freeConnections.isEmpty()) {
-                conn = (Connection) freeConnections.get(freeConnections.size()-1);
-                freeConnections.remove(conn);
-            } else {
-                logger.info("Pool is empty");
-            }
+    public PooledConnection getFreeConn() {
+        WeakReference<PooledConnection> ref=lastUsed.get();
+        if (ref!=null) {
+            PooledConnection conn=ref.get();
+            if (conn!=null && !conn.isLeased() && removeFree(conn)) return conn;
+        }
+        PooledConnection conn=pollFree();
+        if (conn==null) {
+            PoolListener l=listener;
+            if (l!=null) l.poolEmpty();
         }
         return conn;
     }
 
+    /**
+     * Connection is returned by current thread: it goes to the thread's partition
+     * and is remembered as the thread's preferred connection
+     * @param conn
+     */
+    void returnedBy(PooledConnection conn) {
+        conn.partition=homePartition(partitions.length);
+        WeakReference<PooledConnection> ref=lastUsed.get();
+        if (ref==null || ref.get()!=conn) lastUsed.set(new WeakReference<PooledConnection>(conn));
+    }
+
+    /**
+     * Number of free pool partitions
+     * @return
+     */
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * Set number of free pool partitions, 0 - by number of processors.
+     * Intended to be called once after pool is created. Free connections are moved to new partitions.
+     * @param n
+     */
+    public void setPartitionCount(int n) {
+        ConcurrentLinkedDeque<PooledConnection>[] old=partitions;
+        partitions=newPartitions(n);
+        migrate(old);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ConcurrentLinkedDeque<PooledConnection>[] newPartitions(int n) {
+        if (n<=0) n=Math.min(Runtime.getRuntime().availableProcessors(),16);
+        ConcurrentLinkedDeque<PooledConnection>[] p=(ConcurrentLinkedDeque<PooledConnection>[])new ConcurrentLinkedDeque<?>[n];
+        for (int i=0; i<n; i++) p[i]=new ConcurrentLinkedDeque<PooledConnection>();
+        return p;
+    }
+
+    /**
+     * Move connections left in replaced partitions to current ones
+     */
+    private void migrate(ConcurrentLinkedDeque<PooledConnection>[] old) {
+        ConcurrentLinkedDeque<PooledConnection>[] p=partitions;
+        for (int i=0; i<old.length; i++) {
+            PooledConnection conn;
+            while ((conn=old[i].pollFirst())!=null) {
+                conn.partition=(nextPartition.getAndIncrement() & Integer.MAX_VALUE)%p.length;
+                p[conn.partition].addFirst(conn);
+            }
+        }
+    }
+
+    private static int homePartition(int n) {
+        return (int)((Thread.currentThread().getId() & Long.MAX_VALUE)%n);
+    }
+
+    /**
+     * Take given connection out of free pool, e.g. to close it
+     * @param conn
+     * @return false if it is not in the pool (leased or handed to a waiter concurrently)
+     */
+    boolean removeFree(PooledConnection conn) {
+        ConcurrentLinkedDeque<PooledConnection>[] p=partitions;
+        int i=conn.partition;
+        if (i>=p.length || !p[i].remove(conn)) return false;
+        freeCount.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Take connection from current thread's partition, or steal from others if it is empty
+     */
+    PooledConnection pollFree() {
+        if (freeCount.get()<=0) return null;
+        ConcurrentLinkedDeque<PooledConnection>[] p=partitions;
+        int home=homePartition(p.length);
+        for (int i=0; i<p.length; i++) {
+            PooledConnection conn=p[(home+i)%p.length].pollFirst();
+            if (conn!=null) {
+                freeCount.decrementAndGet();
+                return conn;
+            }
+        }
+        return null;
+    }
+
+    private void pushFree(PooledConnection conn) {
+        ConcurrentLinkedDeque<PooledConnection>[] p=partitions;
+        int i=conn.partition;
+        if (i>=p.length) i=conn.partition=0;
+        p[i].addFirst(conn);
+        freeCount.incrementAndGet();
+        if (p!=partitions) migrate(p); //партиции заменены, пока мы клали
+    }
+
+    /**
+     * New pool thread from threadFactory, or platform thread if factory is not set
+     * @param r
+     * @param name
+     * @param daemon used only for platform threads
+     * @return
+     */
+    Thread newThread(Runnable r, String name, boolean daemon) {
+        Thread t;
+        if (threadFactory!=null) {
+            t=threadFactory.newThread(r);
+        } else {
+            t=new Thread(r);
+            t.setDaemon(daemon);
+        }
+        t.setName(name);
+        return t;
+    }
+
     /**
      * additional method for debugging
      * @param conn
@@ -144,6 +513,7 @@ public class PoolData {
     public String connName(Connection conn) {
         //String sName=conn.toString();
         //return sName.replaceFirst(conn.getClass().getCanonicalName(),"");
+        if (conn instanceof PooledConnection) conn=((PooledConnection)conn).conn;
         return ""+conn.hashCode();
     }
 }
@@ -0,0 +1,55 @@
+package kz.kkb.dbpool;
+
+/**
+ * Получатель событий пула. Вызывается в потоке, где произошло событие, в т.ч. на каждой выдаче
+ * и возврате, поэтому реализация должна быть быстрой и не блокировать.
+ * Пул передает только уже имеющиеся объекты и примитивы - сам вызов ничего не выделяет.
+ * По умолчанию - LogPoolListener (лог log4j), PoolData.listener=null отключает события совсем.
+ */
+public interface PoolListener {
+
+    /** причины закрытия коннекции для connectionClosed() */
+    String IDLE_TIMEOUT="idle timeout";
+    String MAX_LIFETIME="max lifetime";
+    String SPARE="spare";
+    String RESET_FAILED="reset failed";
+    String SHRINK="maxConn reduced";
+    String RECLAIMED="lease timeout";
+    String VALIDATION_FAILED="validation failed";
+    String BREAKER_OPEN="database unavailable";
+    String SHUTDOWN="shutdown";
+
+    /**
+     * Connection is leased to borrower
+     * @param conn
+     * @param borrowNanos time spent in getConnection()
+     */
+    void connectionLeased(PooledConnection conn, long borrowNanos);
+
+    /**
+     * Connection is returned to pool
+     * @param conn
+     * @param useMillis time since lease
+     */
+    void connectionReturned(PooledConnection conn, long useMillis);
+
+    /**
+     * Borrower found no free connection
+     */
+    void poolEmpty();
+
+    /**
+     * New connection is opened and added to the pool
+     * @param conn
+     * @param createMillis
+     */
+    void connectionCreated(PooledConnection conn, long createMillis);
+
+    /**
+     * Connection is closed by the pool
+     * @param conn
+     * @param reason IDLE_TIMEOUT, MAX_LIFETIME, SPARE, RESET_FAILED, SHRINK, RECLAIMED (leased longer than connTimeout),
+     *        VALIDATION_FAILED, BREAKER_OPEN (free ones closed by circuit breaker) or SHUTDOWN
+     */
+    void connectionClosed(PooledConnection conn, String reason);
+}
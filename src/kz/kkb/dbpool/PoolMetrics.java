@@ -0,0 +1,238 @@
+package kz.kkb.dbpool;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Метрики пула: счетчики событий и гистограммы времен.
+ * Запись не блокирует и не выделяет память, поэтому ведется всегда.
+ * Снимок для отчетов - snapshot(), то же самое доступно через JMX (PoolMetricsMBean).
+ */
+public class PoolMetrics implements PoolMetricsMBean {
+
+    private final PoolData poolData;
+
+    /** полное время getConnection(), включая ожидание и тест */
+    public final Histogram borrowTime=new Histogram();
+    /** время ожидания в очереди при пустом пуле */
+    public final Histogram waitTime=new Histogram();
+    /** время от выдачи до возврата */
+    public final Histogram usageTime=new Histogram();
+    /** время открытия физической коннекции */
+    public final Histogram createTime=new Histogram();
+    /** время теста коннекции при выдаче */
+    public final Histogram validationTime=new Histogram();
+
+    final LongAdder borrows=new LongAdder();
+    final LongAdder timeouts=new LongAdder();       //getConnection() не дождался коннекции
+    final LongAdder exhausted=new LongAdder();      //на выдаче не оказалось свободной коннекции
+    final LongAdder creates=new LongAdder();
+    final LongAdder createFailures=new LongAdder();
+    final LongAdder validationFailures=new LongAdder();
+    final LongAdder leaseTimeouts=new LongAdder();  //коннекции, отобранные по connTimeout
+    final LongAdder leakWarnings=new LongAdder();   //выдачи дольше leakWarnTime
+    final LongAdder rejected=new LongAdder();       //отказы при открытом автомате защиты (база недоступна)
+
+    PoolMetrics(PoolData poolData) {
+        this.poolData=poolData;
+    }
+
+    /**
+     * Consistent enough copy of all metrics. Counters are read one by one without locking the pool,
+     * so they can differ by events that happened while the snapshot was taken.
+     * @return
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+
+    public int getActiveConnections() {
+        return poolData.getLeasedCount();
+    }
+
+    public int getTotalConnections() {
+        return poolData.getTotalCount();
+    }
+
+    public int getSpareTarget() {
+        return poolData.getSpareTarget();
+    }
+
+    public int getIdleConnections() {
+        return poolData.getFreeCount();
+    }
+
+    public int getPendingConnections() {
+        return poolData.getPendingCount();
+    }
+
+    public int getWaitingThreads() {
+        return poolData.getWaitingCount();
+    }
+
+    public long getBorrowCount() {
+        return borrows.sum();
+    }
+
+    public long getTimeoutCount() {
+        return timeouts.sum();
+    }
+
+    public long getExhaustedCount() {
+        return exhausted.sum();
+    }
+
+    public long getCreateCount() {
+        return creates.sum();
+    }
+
+    public long getCreateFailureCount() {
+        return createFailures.sum();
+    }
+
+    public long getValidationFailureCount() {
+        return validationFailures.sum();
+    }
+
+    public long getLeaseTimeoutCount() {
+        return leaseTimeouts.sum();
+    }
+
+    public long getLeakWarningCount() {
+        return leakWarnings.sum();
+    }
+
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    public String getCircuitState() {
+        return poolData.getCircuitState();
+    }
+
+    public double getBorrowTimeP50() {
+        return ms(borrowTime.getPercentile(50));
+    }
+
+    public double getBorrowTimeP99() {
+        return ms(borrowTime.getPercentile(99));
+    }
+
+    public double getBorrowTimeMax() {
+        return ms(borrowTime.getMax());
+    }
+
+    public double getWaitTimeP99() {
+        return ms(waitTime.getPercentile(99));
+    }
+
+    public double getWaitTimeMax() {
+        return ms(waitTime.getMax());
+    }
+
+    public double getUsageTimeP50() {
+        return ms(usageTime.getPercentile(50));
+    }
+
+    public double getUsageTimeP99() {
+        return ms(usageTime.getPercentile(99));
+    }
+
+    public double getUsageTimeMax() {
+        return ms(usageTime.getMax());
+    }
+
+    public double getCreateTimeP99() {
+        return ms(createTime.getPercentile(99));
+    }
+
+    public double getValidationTimeP99() {
+        return ms(validationTime.getPercentile(99));
+    }
+
+    public void reset() {
+        borrowTime.reset();
+        waitTime.reset();
+        usageTime.reset();
+        createTime.reset();
+        validationTime.reset();
+        borrows.reset();
+        timeouts.reset();
+        exhausted.reset();
+        creates.reset();
+        createFailures.reset();
+        validationFailures.reset();
+        leaseTimeouts.reset();
+        leakWarnings.reset();
+        rejected.reset();
+    }
+
+    private static double ms(long micros) {
+        return micros/1000.0;
+    }
+
+    /**
+     * Копия метрик на момент вызова snapshot(). Времена - в микросекундах.
+     */
+    public static class Snapshot {
+        public final long timestamp=System.currentTimeMillis();
+        public final int active;
+        public final int idle;
+        public final int pending;
+        public final int waiting;
+        public final long borrows;
+        public final long timeouts;
+        public final long exhausted;
+        public final long creates;
+        public final long createFailures;
+        public final long validationFailures;
+        public final long leaseTimeouts;
+        public final long leakWarnings;
+        public final long rejected;
+        public final String circuitState;
+        public final long borrowP50, borrowP99, borrowMax;
+        public final long waitP50, waitP99, waitMax;
+        public final long usageP50, usageP99, usageMax;
+        public final long createP50, createP99, createMax;
+        public final long validationP50, validationP99;
+
+        Snapshot(PoolMetrics m) {
+            active=m.getActiveConnections();
+            idle=m.getIdleConnections();
+            pending=m.getPendingConnections();
+            waiting=m.getWaitingThreads();
+            borrows=m.getBorrowCount();
+            timeouts=m.getTimeoutCount();
+            exhausted=m.getExhaustedCount();
+            creates=m.getCreateCount();
+            createFailures=m.getCreateFailureCount();
+            validationFailures=m.getValidationFailureCount();
+            leaseTimeouts=m.getLeaseTimeoutCount();
+            leakWarnings=m.getLeakWarningCount();
+            rejected=m.getRejectedCount();
+            circuitState=m.getCircuitState();
+            borrowP50=m.borrowTime.getPercentile(50);
+            borrowP99=m.borrowTime.getPercentile(99);
+            borrowMax=m.borrowTime.getMax();
+            waitP50=m.waitTime.getPercentile(50);
+            waitP99=m.waitTime.getPercentile(99);
+            waitMax=m.waitTime.getMax();
+            usageP50=m.usageTime.getPercentile(50);
+            usageP99=m.usageTime.getPercentile(99);
+            usageMax=m.usageTime.getMax();
+            createP50=m.createTime.getPercentile(50);
+            createP99=m.createTime.getPercentile(99);
+            createMax=m.createTime.getMax();
+            validationP50=m.validationTime.getPercentile(50);
+            validationP99=m.validationTime.getPercentile(99);
+        }
+
+        public String toString() {
+            return "active="+active+", idle="+idle+", pending="+pending+", waiting="+waiting
+                    +", borrows="+borrows+", timeouts="+timeouts+", exhausted="+exhausted
+                    +", creates="+creates+", createFailures="+createFailures
+                    +", rejected="+rejected+", circuit="+circuitState
+                    +", borrow p50/p99/max="+borrowP50+"/"+borrowP99+"/"+borrowMax+"us"
+                    +", wait p99="+waitP99+"us, usage p50/p99="+usageP50+"/"+usageP99+"us";
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package kz.kkb.dbpool;
+
+/**
+ * JMX интерфейс метрик пула. Времена - в миллисекундах.
+ */
+public interface PoolMetricsMBean {
+
+    int getActiveConnections();
+    int getIdleConnections();
+    int getPendingConnections();
+    int getWaitingThreads();
+    int getTotalConnections();
+    int getSpareTarget();
+
+    long getBorrowCount();
+    long getTimeoutCount();
+    long getExhaustedCount();
+    long getCreateCount();
+    long getCreateFailureCount();
+    long getValidationFailureCount();
+    long getLeaseTimeoutCount();
+    long getLeakWarningCount();
+    long getRejectedCount();
+    String getCircuitState();
+
+    double getBorrowTimeP50();
+    double getBorrowTimeP99();
+    double getBorrowTimeMax();
+    double getWaitTimeP99();
+    double getWaitTimeMax();
+    double getUsageTimeP50();
+    double getUsageTimeP99();
+    double getUsageTimeMax();
+    double getCreateTimeP99();
+    double getValidationTimeP99();
+
+    /**
+     * Clear histograms and counters
+     */
+    void reset();
+}
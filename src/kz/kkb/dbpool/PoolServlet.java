@@ -1,15 +1,22 @@
 package kz.kkb.dbpool;
 
 import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * DefaultPoolServlet - Сервлет, который можно использовать в случае если у вас всего одна база данных.
  * В этом случае этот класс необходимо прописать как сервлет в web.xml
  * И вызывать в любом месте приложения как PoolServlet.getConnection() и т.п.
+ * GET на сервлет отдает состояние пула в JSON (PoolStatus), параметр top - сколько самых долгих выдач показать.
  */
 public class PoolServlet extends HttpServlet {
 
@@ -21,33 +28,137 @@ public class PoolServlet extends HttpServlet {
         dbUser=config.getInitParameter("user");
         dbPassword=config.getInitParameter("password");
         dbDriver=config.getInitParameter("driver");
+        //параметры пула из web.xml (24.05.2006 по просьбе Олега) проверяются и применяются одним набором
+        PoolConfig poolConfig;
+        try {
+            poolConfig=readConfig(config).build();
+        } catch (IllegalArgumentException e) {
+            throw new ServletException("PoolServlet: invalid pool parameters: "+e.getMessage());
+        }
         try{
             if (connPool==null) {
-                connPool=new ConnectionPool(config.getServletName(),dbDriver,dbName,dbUser,dbPassword);
+                connPool=new ConnectionPool(config.getServletName(),dbDriver,dbName,dbUser,dbPassword,poolConfig);
+            } else {
+                connPool.reconfigure(poolConfig);
             }
         }catch (Exception e){
             throw new ServletException("PoolServlet cannot start: "+e.toString());
         }
-        //устанавливаем параметры пула из web.xml (24.05.2006 по просьбе Олега)
         try {
-            connPool.poolData.minSpareConn = Integer.parseInt(config.getInitParameter("minSpareConn"));
+            connPool.poolData.setPartitionCount(Integer.parseInt(config.getInitParameter("partitions")));
+        } catch (Exception e) {}
+        try {
+            shutdownGrace = Long.parseLong(config.getInitParameter("shutdownGrace"));
         } catch (Exception e) {}
+        //init завершается только на прогретом пуле, чтобы первые запросы после деплоя не получали ошибок
+        long warmUpTimeout=30000;
         try {
-            connPool.poolData.maxConn = Integer.parseInt(config.getInitParameter("maxConn"));
+            warmUpTimeout = Long.parseLong(config.getInitParameter("warmUpTimeout"));
         } catch (Exception e) {}
-        if (null != config.getInitParameter("testQuery"))
-            connPool.poolData.sTestQuery=config.getInitParameter("testQuery");
+        if (warmUpTimeout>0 && !connPool.warmUp(warmUpTimeout,TimeUnit.MILLISECONDS))
+            connPool.poolData.logger.warn("PoolServlet: pool is not warmed up in "+warmUpTimeout+" ms");
         System.out.println("PoolServlet started.");
     }
 
+    /**
+     * Параметры пула из init-параметров сервлета. Не заданные или нечисловые остаются по умолчанию.
+     * @param config
+     * @return
+     */
+    protected PoolConfig.Builder readConfig(ServletConfig config) {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        try {
+            b.minSpareConn = Integer.parseInt(config.getInitParameter("minSpareConn"));
+        } catch (Exception e) {}
+        try {
+            b.maxConn = Integer.parseInt(config.getInitParameter("maxConn"));
+        } catch (Exception e) {}
+        try {
+            b.initialSize = Integer.parseInt(config.getInitParameter("initialSize"));
+        } catch (Exception e) {}
+        try {
+            b.createParallelism = Integer.parseInt(config.getInitParameter("createParallelism"));
+        } catch (Exception e) {}
+        try {
+            b.validationInterval = Long.parseLong(config.getInitParameter("validationInterval"));
+        } catch (Exception e) {}
+        try {
+            b.stmtCacheSize = Integer.parseInt(config.getInitParameter("stmtCacheSize"));
+        } catch (Exception e) {}
+        try {
+            b.idleTimeout = Long.parseLong(config.getInitParameter("idleTimeout"));
+        } catch (Exception e) {}
+        try {
+            b.maxLifetime = Long.parseLong(config.getInitParameter("maxLifetime"));
+        } catch (Exception e) {}
+        //off, sampled (по умолчанию) или full
+        String debugMode=config.getInitParameter("debugMode");
+        if ("off".equalsIgnoreCase(debugMode)) b.debugMode=PoolData.DEBUG_OFF;
+        else if ("full".equalsIgnoreCase(debugMode)) b.debugMode=PoolData.DEBUG_FULL;
+        try {
+            b.debugSampleRate = Integer.parseInt(config.getInitParameter("debugSampleRate"));
+        } catch (Exception e) {}
+        //явно заданный тестовый запрос важнее isValid()
+        b.testQuery=config.getInitParameter("testQuery");
+        try {
+            b.loginTimeout = Integer.parseInt(config.getInitParameter("loginTimeout"));
+        } catch (Exception e) {}
+        try {
+            b.connTimeout = Long.parseLong(config.getInitParameter("connTimeout"));
+        } catch (Exception e) {}
+        try {
+            b.leakWarnTime = Long.parseLong(config.getInitParameter("leakWarnTime"));
+        } catch (Exception e) {}
+        try {
+            b.createTimeout = Long.parseLong(config.getInitParameter("createTimeout"));
+        } catch (Exception e) {}
+        try {
+            b.networkTimeout = Integer.parseInt(config.getInitParameter("networkTimeout"));
+        } catch (Exception e) {}
+        try {
+            b.breakerThreshold = Integer.parseInt(config.getInitParameter("breakerThreshold"));
+        } catch (Exception e) {}
+        //размер пула по нагрузке, minSpareConn и maxConn - границы
+        b.adaptiveSizing="true".equalsIgnoreCase(config.getInitParameter("adaptiveSizing"));
+        try {
+            b.sizerHeadroom = Double.parseDouble(config.getInitParameter("sizerHeadroom"));
+        } catch (Exception e) {}
+        try {
+            b.closeTimeout = Long.parseLong(config.getInitParameter("closeTimeout"));
+        } catch (Exception e) {}
+        try {
+            b.closeParallelism = Integer.parseInt(config.getInitParameter("closeParallelism"));
+        } catch (Exception e) {}
+        return b;
+    }
+
     protected String dbName;
     protected String dbUser;
     protected String dbPassword;
     protected String dbDriver;
     protected String dbLogFile;
+    protected long shutdownGrace=5000;
+
+    /**
+     * Состояние пула в JSON для дежурных. Пул при этом не блокируется.
+     */
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+        int top=10;
+        try {
+            top=Math.max(0,Math.min(100,Integer.parseInt(req.getParameter("top"))));
+        } catch (Exception e) {}
+        String json=connPool.getStatus(top).toJson();
+        resp.setContentType("application/json");
+        resp.setCharacterEncoding("UTF-8");
+        resp.setHeader("Cache-Control","no-cache");
+        PrintWriter out=resp.getWriter();
+        out.print(json);
+        out.flush();
+    }
 
     public void destroy (){
-        connPool.destroy();
+        //выданные коннекции дорабатывают, но не дольше shutdownGrace
+        connPool.shutdown(shutdownGrace,TimeUnit.MILLISECONDS);
         super.destroy();
     }
 
@@ -55,6 +166,14 @@ public class PoolServlet extends HttpServlet {
         return connPool.getConnection();
     }
 
+    public static Connection getConnection(long timeout, TimeUnit unit) throws SQLException{
+        return connPool.getConnection(timeout,unit);
+    }
+
+    public static CompletableFuture<Connection> acquireAsync(long timeout, TimeUnit unit){
+        return connPool.acquireAsync(timeout,unit);
+    }
+
     public static void freeConnection(Connection conn){
         connPool.freeConnection(conn);
     }
@@ -0,0 +1,111 @@
+package kz.kkb.dbpool;
+
+/**
+ * <pre>
+ * Адаптивный размер пула: сколько свободных коннекций держать (вместо постоянного minSpareConn).
+ * Раз в секунду по метрикам пула оценивается спрос - сколько коннекций нужно одновременно:
+ *   по закону Литтла  = частота выдач * среднее время выдачи,
+ *   но не меньше, чем сейчас выдано + ждут в очереди.
+ * Оценка сглаживается двумя скользящими средними (EWMA): быстрая растет за пару секунд,
+ * медленная спадает за минуты. Берется большая из них, так что пул растет сразу, а ужимается плавно.
+ * Цель = спрос*(1+sizerHeadroom) - выдано сейчас, в пределах [minSpareConn, maxConn-выдано].
+ * Ожидание в очереди за интервал сразу поднимает цель на число ожидавших.
+ * Лишние свободные коннекции закрываются как обычно - idleTimeout и циклом поддержки.
+ * Изменения цели пишутся в лог (INFO), текущая цель - PoolMetrics.getSpareTarget().
+ * Выключен, пока PoolConfig.adaptiveSizing=false: тогда цель - minSpareConn.
+ * Шаг выполняется планировщиком ConnManager.
+ * </pre>
+ */
+class PoolSizer implements Runnable {
+
+    static final long INTERVAL=1000;//ms
+    private static final double FAST=0.5;  //вес нового замера для роста
+    private static final double SLOW=0.02; //для спада: половина за ~35 замеров
+
+    private final PoolData poolData;
+    private volatile int target=-1;//-1 - еще не считали
+    private int logged=-1;//цель, о которой писали в лог
+    private double fast;
+    private double slow;
+    private long lastTime;
+    private long lastBorrows;
+    private long lastUsageCount;
+    private long lastUsageSum;
+    private long lastWaits;
+
+    PoolSizer(PoolData poolData) {
+        this.poolData=poolData;
+    }
+
+    /**
+     * Free connections to keep
+     * @return minSpareConn if adaptive sizing is off
+     */
+    int getSpareTarget() {
+        int t=target;
+        PoolConfig cfg=poolData.config;
+        return cfg.adaptiveSizing && t>=0 ? t : cfg.minSpareConn;
+    }
+
+    public void run() {
+        try {
+            PoolConfig cfg=poolData.config;
+            if (!cfg.adaptiveSizing) {
+                target=-1;
+                logged=-1;
+                lastTime=0;
+                return;
+            }
+            sample(cfg,System.currentTimeMillis());
+        } catch (Exception e) {
+            poolData.logger.error(e.getMessage(),e);
+        }
+    }
+
+    private void sample(PoolConfig cfg, long now) {
+        PoolMetrics m=poolData.metrics;
+        long borrows=m.borrows.sum();
+        long usageCount=m.usageTime.getCount();
+        long usageSum=m.usageTime.getSum();
+        long waits=m.waitTime.getCount();
+        int leased=poolData.getLeasedCount();
+        int waiting=poolData.getWaitingCount();
+        if (lastTime==0) {//первый замер - только запоминаем счетчики
+            fast=slow=leased+waiting;
+        } else {
+            double seconds=Math.max(1,now-lastTime)/1000.0;
+            double rate=(borrows-lastBorrows)/seconds;
+            long returned=usageCount-lastUsageCount;
+            //среднее время выдачи за интервал; без возвратов спрос - это выданные и ждущие
+            double lease=returned>0 ? (usageSum-lastUsageSum)/1e6/returned : 0;
+            double demand=Math.max(rate*lease,leased+waiting);
+            fast+=FAST*(demand-fast);
+            slow+=SLOW*(demand-slow);
+            if (demand>slow) slow=Math.max(slow,fast);//рост медленной не ждем
+            int t=compute(cfg,leased,(int)Math.min(Integer.MAX_VALUE,waits-lastWaits));
+            int old=target;
+            target=t;
+            //в лог - заметные изменения, а не дрожание на единицу
+            if (Math.abs(t-logged)>=Math.max(2,logged/10) && poolData.logger.isInfoEnabled()) {
+                poolData.logger.info("Spare target "+(logged<0 ? "" : logged+" -> ")+t+": borrow rate "+Math.round(rate)
+                        +"/s, lease "+Math.round(lease*1000)+" ms, demand "+Math.round(demand*10)/10.0
+                        +", leased "+leased+", waiting "+waiting);
+                logged=t;
+            }
+            //растем заранее, не дожидаясь цикла поддержки
+            if (t>old && poolData.getFreeCount()<t) poolData.connCreator.fillPool();
+        }
+        lastTime=now;
+        lastBorrows=borrows;
+        lastUsageCount=usageCount;
+        lastUsageSum=usageSum;
+        lastWaits=waits;
+    }
+
+    private int compute(PoolConfig cfg, int leased, int waited) {
+        double demand=Math.max(fast,slow);
+        int t=(int)Math.ceil(demand*(1+cfg.sizerHeadroom))-leased+waited;
+        int max=Math.max(0,cfg.maxConn-leased);
+        return Math.max(Math.min(t,max),Math.min(cfg.minSpareConn,max));
+    }
+}
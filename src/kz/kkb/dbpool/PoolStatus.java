@@ -0,0 +1,154 @@
+package kz.kkb.dbpool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Состояние пула для дежурных: счетчики, очередь, самые долгие выдачи, ошибки создания и процентили.
+ * Собирается без блокировок пула - выдача и возврат коннекций не ждут отчета.
+ * Каждая выдача в списке согласована сама с собой: если за время чтения коннекцию вернули
+ * или выдали заново, она в отчет не попадает.
+ * Выдается PoolServlet.doGet() в виде JSON.
+ */
+public class PoolStatus {
+
+    public final String name;
+    public final PoolMetrics.Snapshot metrics;
+    public final int total;
+    public final int maxConn;
+    public final int consecutiveCreateFailures;
+    public final int hangCounter;
+    /** самые долгие текущие выдачи, по убыванию времени */
+    public final List<Lease> longestLeases;
+
+    PoolStatus(String name, PoolData poolData, int top) {
+        this.name=name;
+        metrics=poolData.metrics.snapshot();
+        total=poolData.getTotalCount();
+        maxConn=poolData.config.maxConn;
+        consecutiveCreateFailures=poolData.getConsecutiveCreateFailures();
+        hangCounter=poolData.hangCounter;
+        longestLeases=longest(poolData.getAllConnections(),top,metrics.timestamp);
+    }
+
+    private static List<Lease> longest(List<PooledConnection> all, int top, long now) {
+        List<Lease> list=new ArrayList<Lease>();
+        if (top<=0) return list;
+        for (int i=0; i<all.size(); i++) {
+            PooledConnection pc=all.get(i);
+            long seq=pc.leaseSeq;
+            if (!pc.isLeased()) continue;
+            long leaseTime=pc.leaseTime;
+            String site=pc.debugInfo;
+            Throwable stack=pc.leaseStack;
+            if (pc.leaseSeq!=seq || !pc.isLeased()) continue;//вернули, пока читали
+            list.add(new Lease(pc,now-leaseTime,site,stack));
+        }
+        Collections.sort(list,new Comparator<Lease>() {
+            public int compare(Lease a, Lease b) {
+                return a.millis<b.millis ? 1 : (a.millis==b.millis ? 0 : -1);
+            }
+        });
+        return list.size()>top ? new ArrayList<Lease>(list.subList(0,top)) : list;
+    }
+
+    /**
+     * Текущая выдача коннекции
+     */
+    public static class Lease {
+        public final String connection;
+        public final long millis;
+        private String site;
+        private Throwable stack;
+
+        Lease(PooledConnection pc, long millis, String site, Throwable stack) {
+            this.connection=pc.conn.toString();
+            this.millis=millis;
+            this.site=site;
+            this.stack=stack;
+        }
+
+        /**
+         * Debug info given to getConnection() or the caller site. Stack is resolved only here,
+         * so only reported leases pay for it.
+         * @return null if debug capture is off
+         */
+        public String getSite() {
+            if (site==null && stack!=null) {
+                site=PooledConnection.callerSite(stack);
+                stack=null;
+            }
+            return site;
+        }
+    }
+
+    public String toJson() {
+        PoolMetrics.Snapshot m=metrics;
+        StringBuilder sb=new StringBuilder(1024);
+        sb.append("{\"name\":").append(quote(name));
+        sb.append(",\"timestamp\":").append(m.timestamp);
+        sb.append(",\"circuit\":").append(quote(m.circuitState));
+        sb.append(",\"connections\":{\"total\":").append(total)
+                .append(",\"max\":").append(maxConn)
+                .append(",\"idle\":").append(m.idle)
+                .append(",\"leased\":").append(m.active)
+                .append(",\"pending\":").append(m.pending)
+                .append(",\"waiting\":").append(m.waiting).append('}');
+        sb.append(",\"counters\":{\"borrows\":").append(m.borrows)
+                .append(",\"timeouts\":").append(m.timeouts)
+                .append(",\"exhausted\":").append(m.exhausted)
+                .append(",\"rejected\":").append(m.rejected)
+                .append(",\"leaseTimeouts\":").append(m.leaseTimeouts)
+                .append(",\"leakWarnings\":").append(m.leakWarnings)
+                .append(",\"validationFailures\":").append(m.validationFailures).append('}');
+        sb.append(",\"creation\":{\"creates\":").append(m.creates)
+                .append(",\"failures\":").append(m.createFailures)
+                .append(",\"consecutiveFailures\":").append(consecutiveCreateFailures)
+                .append(",\"hung\":").append(hangCounter).append('}');
+        sb.append(",\"latencyMicros\":{");
+        percentiles(sb,"borrow",m.borrowP50,m.borrowP99,m.borrowMax).append(',');
+        percentiles(sb,"wait",m.waitP50,m.waitP99,m.waitMax).append(',');
+        percentiles(sb,"usage",m.usageP50,m.usageP99,m.usageMax).append(',');
+        percentiles(sb,"create",m.createP50,m.createP99,m.createMax).append('}');
+        sb.append(",\"longestLeases\":[");
+        for (int i=0; i<longestLeases.size(); i++) {
+            Lease l=longestLeases.get(i);
+            if (i>0) sb.append(',');
+            sb.append("{\"connection\":").append(quote(l.connection))
+                    .append(",\"millis\":").append(l.millis)
+                    .append(",\"site\":").append(quote(l.getSite())).append('}');
+        }
+        sb.append("]}");
+        return sb.toString();
+    }
+
+    private static StringBuilder percentiles(StringBuilder sb, String name, long p50, long p99, long max) {
+        return sb.append('"').append(name).append("\":{\"p50\":").append(p50)
+                .append(",\"p99\":").append(p99).append(",\"max\":").append(max).append('}');
+    }
+
+    static String quote(String s) {
+        if (s==null) return "null";
+        StringBuilder sb=new StringBuilder(s.length()+2).append('"');
+        for (int i=0; i<s.length(); i++) {
+            char c=s.charAt(i);
+            switch (c) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c<0x20) sb.append(String.format("\\u%04x",(int)c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    public String toString() {
+        return toJson();
+    }
+}
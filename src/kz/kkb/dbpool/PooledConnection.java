@@ -0,0 +1,700 @@
+package kz.kkb.dbpool;
+
+import java.lang.reflect.Proxy;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.CallableStatement;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.NClob;
+import java.sql.PreparedStatement;
+import java.sql.SQLClientInfoException;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Коннекция пула - обертка над физической коннекцией.
+ * Один объект на физическую коннекцию: лежит в пуле свободных и выдается заемщику.
+ * close() возвращает коннекцию в пул, физическая коннекция при этом не закрывается.
+ * Время и отладочная информация выдачи хранятся в полях, открытые Statement закрываются при возврате
+ * (вместе с ними закрываются и их ResultSet).
+ * Если PoolConfig.stmtCacheSize>0, PreparedStatement и CallableStatement берутся из кеша коннекции.
+ * Свойства коннекции (autoCommit, isolation, readOnly, catalog, schema, network timeout) запоминаются
+ * при создании, сеттеры отмечают измененные за выдачу, и при возврате восстанавливаются только они.
+ * Незавершенная транзакция при возврате откатывается.
+ */
+public class PooledConnection implements Connection {
+
+    static final int FREE=0;   //в пуле свободных или передается заемщику
+    static final int LEASED=1; //выдана
+    static final int CLOSED=2; //физическая коннекция закрыта
+
+    private static final double MAX_JITTER=0.025;//доля, на которую сокращаются maxLifetime и idleTimeout
+
+    //биты dirty - свойства, измененные заемщиком
+    private static final int DIRTY_AUTOCOMMIT=1;
+    private static final int DIRTY_ISOLATION=2;
+    private static final int DIRTY_READONLY=4;
+    private static final int DIRTY_CATALOG=8;
+    private static final int DIRTY_SCHEMA=16;
+    private static final int DIRTY_NETWORK_TIMEOUT=32;
+
+    final Connection conn;//физическая коннекция
+    private final PoolData poolData;
+    private final AtomicInteger state=new AtomicInteger(FREE);
+    private final ArrayList<Statement> statements=new ArrayList<Statement>();//открытые за время выдачи
+    private final ReentrantLock statementsLock=new ReentrantLock();//не монитор: не пиннит virtual thread
+    private volatile StatementCache stmtCache;//создается при первом prepare, если кеш включен
+    final long createTime=System.currentTimeMillis();
+    volatile long leaseTime;  //время выдачи
+    volatile long lastAccess=createTime; //время возврата в пул
+    volatile int partition;//партиция пула свободных, куда кладется коннекция
+    volatile long leaseSeq;//номер выдачи, меняется только при выдаче
+    volatile long warnedSeq=-1;//выдача, о которой уже предупредили как об утечке
+    final AtomicBoolean inWheel=new AtomicBoolean();//стоит в LeaseWheel
+    volatile long wheelTick;//шаг LeaseWheel, на котором сработает
+    volatile String debugInfo;//кто взял коннекцию
+    volatile Throwable leaseStack;//стек выдачи, разбирается в debugInfo только когда понадобится
+    //значения свойств в пуле, читаются один раз в readDefaults()
+    private boolean defAutoCommit=true;
+    private int defIsolation;
+    private boolean defReadOnly;
+    private String defCatalog;
+    private String defSchema;
+    private int defNetworkTimeout;
+    private boolean hasSchema;//драйвер JDBC4.1, есть getSchema() и getNetworkTimeout()
+    private volatile int dirty;
+    private volatile boolean autoCommit=true;//текущее значение
+    private volatile boolean inTransaction;//при autoCommit=false выполнялись запросы после commit/rollback
+    //у каждой коннекции свой срок, чтобы созданные вместе не закрывались все разом
+    private final double jitter=ThreadLocalRandom.current().nextDouble()*MAX_JITTER;
+
+    PooledConnection(PoolData poolData, Connection conn) {
+        this.poolData=poolData;
+        this.conn=conn;
+    }
+
+    /**
+     * Remember state of new connection, it is restored on return if borrower changed it
+     * @throws SQLException
+     */
+    void readDefaults() throws SQLException {
+        defAutoCommit=conn.getAutoCommit();
+        autoCommit=defAutoCommit;
+        defIsolation=conn.getTransactionIsolation();
+        defReadOnly=conn.isReadOnly();
+        defCatalog=conn.getCatalog();
+        try {
+            defSchema=conn.getSchema();
+            defNetworkTimeout=conn.getNetworkTimeout();
+            hasSchema=true;
+        } catch (AbstractMethodError e) {
+        } catch (SQLFeatureNotSupportedException e) {
+        }
+    }
+
+    /**
+     * Restore properties changed by borrower, rollback open transaction.
+     * Called on return after unlease(), statements are closed already.
+     * @throws SQLException connection must be closed then
+     */
+    void resetState() throws SQLException {
+        //откат до восстановления autoCommit: setAutoCommit(true) зафиксировал бы транзакцию
+        if (inTransaction) {
+            conn.rollback();
+            inTransaction=false;
+        }
+        int d=dirty;
+        if (d==0) return;
+        if ((d&DIRTY_AUTOCOMMIT)!=0) {
+            conn.setAutoCommit(defAutoCommit);
+            autoCommit=defAutoCommit;
+        }
+        if ((d&DIRTY_ISOLATION)!=0) conn.setTransactionIsolation(defIsolation);
+        if ((d&DIRTY_READONLY)!=0) conn.setReadOnly(defReadOnly);
+        if ((d&DIRTY_CATALOG)!=0) conn.setCatalog(defCatalog);
+        if ((d&DIRTY_SCHEMA)!=0) conn.setSchema(defSchema);
+        if ((d&DIRTY_NETWORK_TIMEOUT)!=0) conn.setNetworkTimeout(ConnCreator.DIRECT,defNetworkTimeout);
+        dirty=0;
+    }
+
+    private void changed(int bit, boolean isDefault) {
+        if (isDefault) dirty&=~bit;
+        else dirty|=bit;
+    }
+
+    /**
+     * Statement executed: with autoCommit=false it opens transaction
+     */
+    void executed() {
+        if (!autoCommit) inTransaction=true;
+    }
+
+    private static boolean same(String a, String b) {
+        return a==null ? b==null : a.equals(b);
+    }
+
+    /**
+     * Mark connection as leased
+     * @param sDebugInfo
+     * @param stack stack of getConnection() call, used if sDebugInfo is null
+     * @return false if connection is leased already or closed
+     */
+    boolean lease(String sDebugInfo, Throwable stack) {
+        //поля выдачи пишутся до CAS, который их и публикует: кто видит LEASED (LeaseWheel), видит и новую выдачу,
+        //а не срок прошлой. Пишет только поток, взявший коннекцию из пула, поэтому гонки выдачи здесь нет
+        leaseTime=System.currentTimeMillis();
+        debugInfo=sDebugInfo;
+        leaseStack=stack;
+        leaseSeq++;
+        if (!state.compareAndSet(FREE,LEASED)) {//закрыта
+            debugInfo=null;
+            leaseStack=null;
+            return false;
+        }
+        poolData.leased(1);
+        poolData.leaseWheel.leased(this);
+        return true;
+    }
+
+    /**
+     * Who leased this connection: debug info given to getConnection() or the caller site
+     * taken from captured stack. Stack frames are resolved here, not on lease.
+     * @return null if nothing was captured
+     */
+    String getDebugInfo() {
+        String s=debugInfo;
+        Throwable t=leaseStack;
+        if (s!=null || t==null) return s;
+        s=callerSite(t);
+        debugInfo=s;
+        return s;
+    }
+
+    /**
+     * First frame outside of the pool package
+     */
+    static String callerSite(Throwable t) {
+        StackTraceElement[] st=t.getStackTrace();
+        for (int i=0; i<st.length; i++) {
+            if (!st[i].getClassName().startsWith("kz.kkb.dbpool.")) return st[i].toString();
+        }
+        return st.length>0 ? st[st.length-1].toString() : null;
+    }
+
+    /**
+     * Mark connection as returned, close statements opened by borrower
+     * @return false if connection was not leased (returned twice or killed by timeout)
+     */
+    boolean unlease() {
+        if (!state.compareAndSet(LEASED,FREE)) return false;
+        poolData.leased(-1);
+        debugInfo=null;
+        leaseStack=null;
+        closeStatements();
+        lastAccess=System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * Connection lived longer than maxLifetime (shortened by jitter)
+     * @param now
+     * @return
+     */
+    boolean isExpired(long now) {
+        long max=poolData.config.maxLifetime;
+        return max>0 && now-createTime>=max-(long)(max*jitter);
+    }
+
+    /**
+     * Connection is free longer than idleTimeout (shortened by jitter)
+     * @param now
+     * @return
+     */
+    boolean isIdleExpired(long now) {
+        long max=poolData.config.idleTimeout;
+        return max>0 && now-lastAccess>=max-(long)(max*jitter);
+    }
+
+    boolean isLeased() {
+        return state.get()==LEASED;
+    }
+
+    boolean isPhysicallyClosed() {
+        return state.get()==CLOSED;
+    }
+
+    /**
+     * Close physical connection and remove it from the pool
+     * @return false if it was closed already
+     */
+    boolean closePhysical() {
+        if (!markClosed()) return false;
+        release();
+        return true;
+    }
+
+    /**
+     * Same, but driver close() runs in executor: the connection leaves the pool and gives back
+     * its permit at once, while the caller is not blocked by a dead socket
+     * @param executor
+     */
+    void closePhysical(Executor executor) {
+        if (markClosed()) releaseIn(executor);
+    }
+
+    /**
+     * Switch state to CLOSED and take connection out of leased count or free pool
+     * @return false if closed already
+     */
+    private boolean markClosed() {
+        int old=state.getAndSet(CLOSED);
+        if (old==CLOSED) return false;
+        if (old==LEASED) poolData.leased(-1);
+        else poolData.removeFree(this);//закрытая не должна оставаться в пуле свободных и в freeCount
+        return true;
+    }
+
+    /**
+     * Close connection leased too long, unless it was returned since. Driver close() runs in executor.
+     * @param seq lease number
+     * @param executor
+     * @return false if this lease is over already
+     */
+    boolean reclaim(long seq, Executor executor) {
+        if (leaseSeq!=seq || !state.compareAndSet(LEASED,CLOSED)) return false;
+        poolData.leased(-1);
+        releaseIn(executor);
+        return true;
+    }
+
+    /**
+     * Give the permit back at once, close the driver connection in executor
+     */
+    private void releaseIn(Executor executor) {
+        detach();
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    closeTarget();
+                }
+            });
+        } catch (RejectedExecutionException e) {//executor остановлен - закрываем сами
+            closeTarget();
+        }
+    }
+
+    private void release() {
+        detach();
+        closeTarget();
+    }
+
+    private void detach() {
+        poolData.unregister(this);
+        poolData.releasePermit();
+    }
+
+    private void closeTarget() {
+        closeStatements();
+        StatementCache cache=stmtCache;
+        if (cache!=null) cache.clear();
+        try {
+            conn.close();
+        } catch (Exception e) {
+            poolData.logger.warn("Can't close connection "+poolData.connName(conn)+": "+e);
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (state.get()!=LEASED) throw new SQLException("Connection is closed");
+    }
+
+    private <T extends Statement> T track(T st, Class<T> type, StatementCache.Entry cached) {
+        @SuppressWarnings("unchecked")
+        T proxy=(T)Proxy.newProxyInstance(PooledConnection.class.getClassLoader(), new Class<?>[]{type},
+                new StatementHandler(this,st,cached));
+        statementsLock.lock();
+        try {
+            statements.add(proxy);
+        } finally {
+            statementsLock.unlock();
+        }
+        return proxy;
+    }
+
+    void forget(Statement st) {
+        statementsLock.lock();
+        try {
+            statements.remove(st);
+        } finally {
+            statementsLock.unlock();
+        }
+    }
+
+    private void closeStatements() {
+        Statement[] list;
+        statementsLock.lock();
+        try {
+            if (statements.isEmpty()) return;
+            list=statements.toArray(new Statement[statements.size()]);
+            statements.clear();
+        } finally {
+            statementsLock.unlock();
+        }
+        for (int i=0; i<list.length; i++) {
+            try {
+                list[i].close();
+            } catch (Exception e) {
+                poolData.logger.warn("Can't close statement: "+e);
+            }
+        }
+    }
+
+    /**
+     * Returns connection to the pool
+     */
+    public void close() throws SQLException {
+        if (state.get()!=LEASED) return; //повторный close() допустим
+        poolData.connPool.freeConnection(this);
+    }
+
+    public boolean isClosed() throws SQLException {
+        return state.get()!=LEASED;
+    }
+
+    public Statement createStatement() throws SQLException {
+        checkOpen();
+        return track(conn.createStatement(),Statement.class,null);
+    }
+
+    public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+        checkOpen();
+        return track(conn.createStatement(resultSetType,resultSetConcurrency),Statement.class,null);
+    }
+
+    public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        checkOpen();
+        return track(conn.createStatement(resultSetType,resultSetConcurrency,resultSetHoldability),Statement.class,null);
+    }
+
+    public PreparedStatement prepareStatement(String sql) throws SQLException {
+        return prepare(PreparedStatement.class,new StatementCache.Key(sql,false,-1,-1,-1,-1));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return prepare(PreparedStatement.class,new StatementCache.Key(sql,false,resultSetType,resultSetConcurrency,-1,-1));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return prepare(PreparedStatement.class,new StatementCache.Key(sql,false,resultSetType,resultSetConcurrency,resultSetHoldability,-1));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+        return prepare(PreparedStatement.class,new StatementCache.Key(sql,false,-1,-1,-1,autoGeneratedKeys));
+    }
+
+    public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+        checkOpen();
+        return track(conn.prepareStatement(sql,columnIndexes),PreparedStatement.class,null);
+    }
+
+    public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+        checkOpen();
+        return track(conn.prepareStatement(sql,columnNames),PreparedStatement.class,null);
+    }
+
+    public CallableStatement prepareCall(String sql) throws SQLException {
+        return prepare(CallableStatement.class,new StatementCache.Key(sql,true,-1,-1,-1,-1));
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+        return prepare(CallableStatement.class,new StatementCache.Key(sql,true,resultSetType,resultSetConcurrency,-1,-1));
+    }
+
+    public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return prepare(CallableStatement.class,new StatementCache.Key(sql,true,resultSetType,resultSetConcurrency,resultSetHoldability,-1));
+    }
+
+    /**
+     * Prepare statement through statement cache, if it is switched on (stmtCacheSize>0)
+     */
+    private <T extends PreparedStatement> T prepare(Class<T> type, StatementCache.Key key) throws SQLException {
+        checkOpen();
+        StatementCache cache=stmtCache;
+        int cacheSize;
+        if (cache==null && (cacheSize=poolData.config.stmtCacheSize)>0) {
+            cache=new StatementCache(cacheSize,poolData.logger);
+            stmtCache=cache;
+        }
+        if (cache==null) return track(type.cast(prepareNew(key)),type,null);
+        StatementCache.Entry e=cache.take(key);
+        if (e==null) {
+            PreparedStatement st=prepareNew(key);
+            e=cache.put(key,st);
+            //такой же statement сейчас открыт - второй не кешируем
+            if (e==null) return track(type.cast(st),type,null);
+        }
+        return track(type.cast(e.stmt),type,e);
+    }
+
+    private PreparedStatement prepareNew(StatementCache.Key key) throws SQLException {
+        if (key.call) {
+            if (key.resultSetHoldability>=0)
+                return conn.prepareCall(key.sql,key.resultSetType,key.resultSetConcurrency,key.resultSetHoldability);
+            if (key.resultSetType>=0)
+                return conn.prepareCall(key.sql,key.resultSetType,key.resultSetConcurrency);
+            return conn.prepareCall(key.sql);
+        }
+        if (key.autoGeneratedKeys>=0)
+            return conn.prepareStatement(key.sql,key.autoGeneratedKeys);
+        if (key.resultSetHoldability>=0)
+            return conn.prepareStatement(key.sql,key.resultSetType,key.resultSetConcurrency,key.resultSetHoldability);
+        if (key.resultSetType>=0)
+            return conn.prepareStatement(key.sql,key.resultSetType,key.resultSetConcurrency);
+        return conn.prepareStatement(key.sql);
+    }
+
+    void release(StatementCache.Entry e) {
+        StatementCache cache=stmtCache;
+        if (cache!=null) cache.release(e);
+    }
+
+    public String nativeSQL(String sql) throws SQLException {
+        checkOpen();
+        return conn.nativeSQL(sql);
+    }
+
+    public void setAutoCommit(boolean autoCommit) throws SQLException {
+        checkOpen();
+        conn.setAutoCommit(autoCommit);
+        this.autoCommit=autoCommit;
+        if (autoCommit) inTransaction=false;//транзакция зафиксирована драйвером
+        changed(DIRTY_AUTOCOMMIT,autoCommit==defAutoCommit);
+    }
+
+    public boolean getAutoCommit() throws SQLException {
+        checkOpen();
+        return conn.getAutoCommit();
+    }
+
+    public void commit() throws SQLException {
+        checkOpen();
+        conn.commit();
+        inTransaction=false;
+    }
+
+    public void rollback() throws SQLException {
+        checkOpen();
+        conn.rollback();
+        inTransaction=false;
+    }
+
+    public void rollback(Savepoint savepoint) throws SQLException {
+        checkOpen();
+        conn.rollback(savepoint);
+    }
+
+    public DatabaseMetaData getMetaData() throws SQLException {
+        checkOpen();
+        return DelegateHandler.wrap(this,conn.getMetaData());
+    }
+
+    public void setReadOnly(boolean readOnly) throws SQLException {
+        checkOpen();
+        conn.setReadOnly(readOnly);
+        changed(DIRTY_READONLY,readOnly==defReadOnly);
+    }
+
+    public boolean isReadOnly() throws SQLException {
+        checkOpen();
+        return conn.isReadOnly();
+    }
+
+    public void setCatalog(String catalog) throws SQLException {
+        checkOpen();
+        conn.setCatalog(catalog);
+        changed(DIRTY_CATALOG,same(catalog,defCatalog));
+    }
+
+    public String getCatalog() throws SQLException {
+        checkOpen();
+        return conn.getCatalog();
+    }
+
+    public void setTransactionIsolation(int level) throws SQLException {
+        checkOpen();
+        conn.setTransactionIsolation(level);
+        changed(DIRTY_ISOLATION,level==defIsolation);
+    }
+
+    public int getTransactionIsolation() throws SQLException {
+        checkOpen();
+        return conn.getTransactionIsolation();
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+        checkOpen();
+        return conn.getWarnings();
+    }
+
+    public void clearWarnings() throws SQLException {
+        checkOpen();
+        conn.clearWarnings();
+    }
+
+    public Map<String,Class<?>> getTypeMap() throws SQLException {
+        checkOpen();
+        return conn.getTypeMap();
+    }
+
+    public void setTypeMap(Map<String,Class<?>> map) throws SQLException {
+        checkOpen();
+        conn.setTypeMap(map);
+    }
+
+    public void setHoldability(int holdability) throws SQLException {
+        checkOpen();
+        conn.setHoldability(holdability);
+    }
+
+    public int getHoldability() throws SQLException {
+        checkOpen();
+        return conn.getHoldability();
+    }
+
+    public Savepoint setSavepoint() throws SQLException {
+        checkOpen();
+        Savepoint sp=conn.setSavepoint();
+        executed();
+        return sp;
+    }
+
+    public Savepoint setSavepoint(String name) throws SQLException {
+        checkOpen();
+        Savepoint sp=conn.setSavepoint(name);
+        executed();
+        return sp;
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) throws SQLException {
+        checkOpen();
+        conn.releaseSavepoint(savepoint);
+    }
+
+    public Clob createClob() throws SQLException {
+        checkOpen();
+        return conn.createClob();
+    }
+
+    public Blob createBlob() throws SQLException {
+        checkOpen();
+        return conn.createBlob();
+    }
+
+    public NClob createNClob() throws SQLException {
+        checkOpen();
+        return conn.createNClob();
+    }
+
+    public SQLXML createSQLXML() throws SQLException {
+        checkOpen();
+        return conn.createSQLXML();
+    }
+
+    public boolean isValid(int timeout) throws SQLException {
+        return state.get()==LEASED && conn.isValid(timeout);
+    }
+
+    public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        conn.setClientInfo(name,value);
+    }
+
+    public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        conn.setClientInfo(properties);
+    }
+
+    public String getClientInfo(String name) throws SQLException {
+        checkOpen();
+        return conn.getClientInfo(name);
+    }
+
+    public Properties getClientInfo() throws SQLException {
+        checkOpen();
+        return conn.getClientInfo();
+    }
+
+    public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
+        checkOpen();
+        return conn.createArrayOf(typeName,elements);
+    }
+
+    public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
+        checkOpen();
+        return conn.createStruct(typeName,attributes);
+    }
+
+    public void setSchema(String schema) throws SQLException {
+        checkOpen();
+        conn.setSchema(schema);
+        if (hasSchema) changed(DIRTY_SCHEMA,same(schema,defSchema));
+    }
+
+    public String getSchema() throws SQLException {
+        checkOpen();
+        return conn.getSchema();
+    }
+
+    /**
+     * Abort kills physical connection, it is not returned to the pool.
+     * Connection is closed for the borrower at once, physical close runs on the executor.
+     */
+    public void abort(Executor executor) throws SQLException {
+        if (executor==null) throw new SQLException("Executor is null");
+        if (state.get()!=LEASED) return;
+        String debug=getDebugInfo();
+        if (!markClosed()) return;
+        poolData.logger.warn("Connection "+poolData.connName(this)+" aborted, debug="+debug);
+        releaseIn(executor);
+    }
+
+    public void setNetworkTimeout(Executor executor, int milliseconds) throws SQLException {
+        checkOpen();
+        conn.setNetworkTimeout(executor,milliseconds);
+        if (hasSchema) changed(DIRTY_NETWORK_TIMEOUT,milliseconds==defNetworkTimeout);
+    }
+
+    public int getNetworkTimeout() throws SQLException {
+        checkOpen();
+        return conn.getNetworkTimeout();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        checkOpen();
+        if (iface.isInstance(conn)) return iface.cast(conn);
+        return conn.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this) || iface.isInstance(conn) || conn.isWrapperFor(iface);
+    }
+
+    public String toString() {
+        return "PooledConnection["+conn+"]";
+    }
+}
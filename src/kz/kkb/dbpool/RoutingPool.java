@@ -0,0 +1,224 @@
+package kz.kkb.dbpool;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <pre>
+ * Маршрутизатор над несколькими пулами: основная база (primary) и реплики только для чтения.
+ * READ_WRITE коннекции выдаются из primary, READ_ONLY - из реплики с наименьшим числом
+ * выданных коннекций и ожидающих потоков (least outstanding leases), при равенстве - по кругу.
+ * Если все реплики недоступны, READ_ONLY выдается из primary.
+ *
+ * Реплика считается упавшей, если ее пул failureThreshold раз подряд не смог открыть коннекцию
+ * или у него открыт автомат защиты (CircuitBreaker).
+ * Раз в probeInterval планировщик primary (ConnManager) запускает в упавших пулах пробную коннекцию
+ * (мимо автомата и запаса свободных) - обычной попыткой создания пула: под разрешение maxConn
+ * и с таймаутом createTimeout, так что зависшая реплика не задерживает проверку остальных.
+ * Удачная проба сбрасывает счетчик неудач, и на следующей проверке реплика снова получает нагрузку.
+ * Ожидание timeout общее на весь запрос: каждая следующая попытка получает остаток времени.
+ *
+ * Коннекции возвращаются как обычно - close() или freeConnection(), каждая знает свой пул.
+ * Логгер: ConnectionPool.{name}
+ * </pre>
+ */
+public class RoutingPool implements Runnable {
+
+    public enum Access {READ_WRITE, READ_ONLY}
+
+    /** consecutive creation failures after which replica is marked down, default=3 */
+    public volatile int failureThreshold=3;
+    /** how often down replicas are probed, ms, default=5000 */
+    public volatile long probeInterval=5000;
+
+    private final ConnectionPool primary;
+    private final Node[] replicas;
+    private final AtomicInteger next=new AtomicInteger();//начало обхода реплик
+    private final Logger logger;
+    private volatile ScheduledFuture<?> probeTask;
+    private volatile boolean stopped;
+
+    /**
+     * Реплика и ее состояние
+     */
+    private static class Node {
+        final ConnectionPool pool;
+        volatile boolean down;
+        Node(ConnectionPool pool) {
+            this.pool=pool;
+        }
+    }
+
+    /**
+     * Создает маршрутизатор над уже созданными пулами и запускает фоновую проверку реплик
+     * @param name
+     * @param primary
+     * @param replicas
+     */
+    public RoutingPool(String name, ConnectionPool primary, ConnectionPool... replicas) {
+        this.primary=primary;
+        this.replicas=new Node[replicas.length];
+        for (int i=0; i<replicas.length; i++) this.replicas[i]=new Node(replicas[i]);
+        logger=Logger.getLogger("ConnectionPool."+name);
+        probeTask=primary.poolData.connManager.schedule(this,0,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Коннекция на запись (из primary)
+     * @return
+     * @throws SQLException
+     */
+    public Connection getConnection() throws SQLException {
+        return primary.getConnection();
+    }
+
+    /**
+     * Коннекция на запись или только на чтение
+     * @param access
+     * @return
+     * @throws SQLException
+     */
+    public Connection getConnection(Access access) throws SQLException {
+        return getConnection(access,0,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Коннекция на запись или только на чтение, с ожиданием не дольше timeout.
+     * Если реплика не выдала коннекцию, пробуется следующая, последней - primary.
+     * timeout - на все попытки вместе, неудачи реплик пишутся в лог одним предупреждением.
+     * @param access
+     * @param timeout
+     * @param unit
+     * @return
+     * @throws SQLException
+     */
+    public Connection getConnection(Access access, long timeout, TimeUnit unit) throws SQLException {
+        long deadline=System.nanoTime()+unit.toNanos(timeout);
+        StringBuilder failed=null;
+        if (access==Access.READ_ONLY) {
+            List<Node> order=readOrder();
+            for (int i=0; i<order.size(); i++) {
+                ConnectionPool pool=order.get(i).pool;
+                try {
+                    Connection con=pool.getConnection(left(deadline),TimeUnit.NANOSECONDS);
+                    if (failed!=null) logger.warn("Replicas failed to lease connection: "+failed);
+                    return con;
+                } catch (SQLException e) {
+                    if (failed==null) failed=new StringBuilder();
+                    else failed.append("; ");
+                    failed.append(pool.poolData.URL).append(": ").append(e.getMessage());
+                }
+            }
+        }
+        if (failed!=null) logger.warn("Replicas failed to lease connection, using primary: "+failed);
+        return primary.getConnection(left(deadline),TimeUnit.NANOSECONDS);
+    }
+
+    private static long left(long deadline) {
+        return Math.max(0,deadline-System.nanoTime());
+    }
+
+    /**
+     * Up replicas, least loaded first
+     */
+    private List<Node> readOrder() {
+        List<Node> list=new ArrayList<Node>(replicas.length);
+        int start=(next.getAndIncrement() & Integer.MAX_VALUE);
+        for (int i=0; i<replicas.length; i++) {
+            Node n=replicas[(start+i)%replicas.length];
+            if (!isUp(n)) continue;
+            //вставка по возрастанию нагрузки; при равенстве сохраняется порядок обхода
+            int load=outstanding(n);
+            int pos=list.size();
+            while (pos>0 && outstanding(list.get(pos-1))>load) pos--;
+            list.add(pos,n);
+        }
+        return list;
+    }
+
+    private boolean isUp(Node n) {
+        return !n.down && !isFailing(n) && n.pool.poolData.available;
+    }
+
+    private boolean isFailing(Node n) {
+        return n.pool.poolData.getConsecutiveCreateFailures()>=failureThreshold || n.pool.poolData.breaker.isOpen();
+    }
+
+    private static int outstanding(Node n) {
+        return n.pool.getLeasedCount()+n.pool.poolData.getWaitingCount();
+    }
+
+    /**
+     * Return connection to its pool. Same as con.close()
+     * @param con
+     */
+    public void freeConnection(Connection con) {
+        if (!(con instanceof PooledConnection)) {
+            primary.freeConnection(con); //выдаст предупреждение
+            return;
+        }
+        try {
+            con.close();
+        } catch (SQLException e) {
+            logger.warn(e.getMessage());
+        }
+    }
+
+    /**
+     * Count of replicas available for READ_ONLY connections
+     * @return
+     */
+    public int getUpReplicaCount() {
+        int n=0;
+        for (int i=0; i<replicas.length; i++) if (isUp(replicas[i])) n++;
+        return n;
+    }
+
+    /**
+     * Проверка реплик в планировщике primary: отмечает упавшие и запускает пробу в них.
+     * Не блокирует - проба открывается в потоках создания пула реплики.
+     */
+    public void run() {
+        for (int i=0; i<replicas.length; i++) {
+            Node n=replicas[i];
+            try {
+                boolean failing=isFailing(n);
+                if (failing && !n.down) {
+                    n.down=true;
+                    logger.error("Replica "+n.pool.poolData.URL+" is down after "
+                            +n.pool.poolData.getConsecutiveCreateFailures()+" failed connection attempts");
+                } else if (!failing && n.down) {//проба или выдача удалась
+                    n.down=false;
+                    logger.info("Replica "+n.pool.poolData.URL+" is up again");
+                }
+                //пока идет попытка создания, она сама и есть проба
+                if (n.down && n.pool.poolData.getPendingCount()==0) n.pool.poolData.connCreator.probe();
+            } catch (Exception e) {
+                logger.error("Replica probe error: ",e);
+            }
+        }
+        if (stopped) return;
+        try {
+            probeTask=primary.poolData.connManager.schedule(this,probeInterval,TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {//primary остановлен
+        }
+    }
+
+    /**
+     * Останавливает фоновую проверку и все пулы
+     */
+    public void destroy() {
+        stopped=true;
+        probeTask.cancel(false);
+        for (int i=0; i<replicas.length; i++) replicas[i].pool.destroy();
+        primary.destroy();
+    }
+}
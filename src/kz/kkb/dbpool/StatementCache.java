@@ -0,0 +1,230 @@
+package kz.kkb.dbpool;
+
+import org.apache.log4j.Logger;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Кеш PreparedStatement/CallableStatement одной физической коннекции.
+ * Ключ - текст SQL вместе с параметрами ResultSet. Вытесняется давно не использованный statement.
+ * Закрытие statement заемщиком возвращает его в кеш, физически он закрывается при вытеснении
+ * или вместе с коннекцией. При возврате в кеш закрывается открытый ResultSet (курсор на сервере),
+ * очищаются параметры и batch, maxRows, queryTimeout и fetch size/direction восстанавливаются
+ * на значения, запомненные при prepare - следующий заемщик получает statement как новый.
+ * Блокировка - ReentrantLock, а не synchronized, чтобы не пиннить carrier у virtual threads.
+ * Statement закрывается всегда вне блокировки.
+ */
+class StatementCache {
+
+    private final int maxSize;
+    private final Logger logger;
+    private final LinkedHashMap<Key,Entry> cache;
+    private final ReentrantLock lock=new ReentrantLock();
+    private final List<PreparedStatement> evicted=new ArrayList<PreparedStatement>();//закрыть после снятия блокировки
+
+    StatementCache(int maxSize, Logger logger) {
+        this.maxSize=maxSize;
+        this.logger=logger;
+        cache=new LinkedHashMap<Key,Entry>(16,0.75f,true) {
+            protected boolean removeEldestEntry(Map.Entry<Key,StatementCache.Entry> eldest) {
+                if (size()<=StatementCache.this.maxSize) return false;
+                StatementCache.Entry e=eldest.getValue();
+                e.evicted=true;
+                if (!e.inUse) evicted.add(e.stmt); //занятый закроется при возврате
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Take statement from cache
+     * @param key
+     * @return null if there is no free statement for this key
+     */
+    Entry take(Key key) {
+        lock.lock();
+        try {
+            Entry e=cache.get(key);
+            if (e==null || e.inUse) return null;
+            e.inUse=true;
+            return e;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Put newly prepared statement into cache, it is marked as used
+     * @param key
+     * @param stmt
+     * @return entry or null if the key is cached already (statement with same SQL is used now)
+     */
+    Entry put(Key key, PreparedStatement stmt) {
+        PreparedStatement[] toClose;
+        Entry e;
+        int fetchSize, fetchDirection;
+        try {//до блокировки: у некоторых драйверов это обращение к серверу
+            fetchSize=stmt.getFetchSize();
+            fetchDirection=stmt.getFetchDirection();
+        } catch (SQLException ex) {
+            logger.warn("Can't read statement defaults, not caching it: "+ex);
+            return null;
+        }
+        lock.lock();
+        try {
+            if (cache.containsKey(key)) return null;
+            e=new Entry(stmt,fetchSize,fetchDirection);
+            e.inUse=true;
+            cache.put(key,e);
+            toClose=evicted.toArray(new PreparedStatement[evicted.size()]);
+            evicted.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (int i=0; i<toClose.length; i++) closeQuietly(toClose[i]);
+        return e;
+    }
+
+    /**
+     * Return statement to cache after borrower closed it
+     * @param e
+     */
+    void release(Entry e) {
+        //сбрасываем, пока statement помечен занятым - другой заемщик его не возьмет
+        boolean reset=false;
+        try {
+            reset(e);
+            reset=true;
+        } catch (SQLException ex) {
+            logger.warn("Can't reset cached statement, closing it: "+ex);
+        }
+        boolean close;
+        lock.lock();
+        try {
+            e.inUse=false;
+            if (!reset && !e.evicted) {
+                e.evicted=true;
+                cache.values().remove(e);
+            }
+            close=e.evicted;
+        } finally {
+            lock.unlock();
+        }
+        if (close) closeQuietly(e.stmt);
+    }
+
+    /**
+     * Return statement to the state it had after prepare
+     */
+    private void reset(Entry e) throws SQLException {
+        PreparedStatement st=e.stmt;
+        ResultSet rs=st.getResultSet();
+        if (rs!=null) rs.close();
+        st.clearParameters();
+        st.clearBatch();
+        st.setMaxRows(0);
+        st.setQueryTimeout(0);
+        st.setFetchSize(e.fetchSize);
+        st.setFetchDirection(e.fetchDirection);
+        st.clearWarnings();
+    }
+
+    /**
+     * Close all cached statements, used when physical connection is closed
+     */
+    void clear() {
+        List<PreparedStatement> list=new ArrayList<PreparedStatement>();
+        lock.lock();
+        try {
+            for (Iterator<Entry> it=cache.values().iterator(); it.hasNext();) {
+                Entry e=it.next();
+                e.evicted=true;
+                if (!e.inUse) list.add(e.stmt);
+            }
+            cache.clear();
+        } finally {
+            lock.unlock();
+        }
+        for (int i=0; i<list.size(); i++) closeQuietly(list.get(i));
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return cache.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (Exception e) {
+            logger.warn("Can't close cached statement: "+e);
+        }
+    }
+
+    static class Entry {
+        final PreparedStatement stmt;
+        final int fetchSize;     //значения после prepare, восстанавливаются при возврате
+        final int fetchDirection;
+        boolean inUse;
+        boolean evicted;//удален из кеша - при возврате закрыть
+
+        Entry(PreparedStatement stmt, int fetchSize, int fetchDirection) {
+            this.stmt=stmt;
+            this.fetchSize=fetchSize;
+            this.fetchDirection=fetchDirection;
+        }
+    }
+
+    /**
+     * SQL with ResultSet options. call - prepareCall or prepareStatement
+     */
+    static class Key {
+        final String sql;
+        final boolean call;
+        final int resultSetType;
+        final int resultSetConcurrency;
+        final int resultSetHoldability;
+        final int autoGeneratedKeys;
+        private final int hash;
+
+        Key(String sql, boolean call, int resultSetType, int resultSetConcurrency, int resultSetHoldability, int autoGeneratedKeys) {
+            this.sql=sql;
+            this.call=call;
+            this.resultSetType=resultSetType;
+            this.resultSetConcurrency=resultSetConcurrency;
+            this.resultSetHoldability=resultSetHoldability;
+            this.autoGeneratedKeys=autoGeneratedKeys;
+            int h=sql.hashCode();
+            h=31*h+(call ? 1 : 0);
+            h=31*h+resultSetType;
+            h=31*h+resultSetConcurrency;
+            h=31*h+resultSetHoldability;
+            h=31*h+autoGeneratedKeys;
+            hash=h;
+        }
+
+        public int hashCode() {
+            return hash;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) return false;
+            Key k=(Key)o;
+            return hash==k.hash && call==k.call && resultSetType==k.resultSetType
+                    && resultSetConcurrency==k.resultSetConcurrency && resultSetHoldability==k.resultSetHoldability
+                    && autoGeneratedKeys==k.autoGeneratedKeys && sql.equals(k.sql);
+        }
+    }
+}
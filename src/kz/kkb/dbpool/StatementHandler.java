@@ -0,0 +1,61 @@
+package kz.kkb.dbpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Обертка над Statement, выданным через PooledConnection.
+ * Сообщает коннекции о закрытии statement и подставляет коннекцию пула в getConnection(),
+ * чтобы заемщик не получил в руки физическую коннекцию. ResultSet оборачиваются так же (DelegateHandler):
+ * их getStatement() возвращает эту обертку.
+ * Statement из кеша при закрытии возвращается в кеш, после этого обертка им больше не пользуется.
+ * Выполнение запроса отмечается в коннекции - при autoCommit=false это открытая транзакция.
+ */
+class StatementHandler implements InvocationHandler {
+
+    private final PooledConnection owner;
+    private final Statement target;
+    private final StatementCache.Entry cached;//null если statement не из кеша
+    private volatile boolean closed;
+
+    StatementHandler(PooledConnection owner, Statement target, StatementCache.Entry cached) {
+        this.owner=owner;
+        this.target=target;
+        this.cached=cached;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name=method.getName();
+        if (args==null) {
+            if ("close".equals(name)) {
+                if (closed) return null;
+                closed=true;
+                owner.forget((Statement)proxy);
+                if (cached!=null) owner.release(cached);
+                else target.close();
+                return null;
+            }
+            if ("isClosed".equals(name) && closed) return Boolean.TRUE;
+            if ("getConnection".equals(name)) return owner;
+            if ("hashCode".equals(name)) return System.identityHashCode(proxy);
+            if ("toString".equals(name)) return target.toString();
+        } else if (args.length==1 && "equals".equals(name)) {
+            return proxy==args[0];
+        }
+        //statement из кеша мог уже достаться другому заемщику
+        if (closed && cached!=null) throw new SQLException("Statement is closed");
+        if (name.startsWith("execute")) owner.executed();
+        Object result;
+        try {
+            result=method.invoke(target,args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        if (result instanceof ResultSet) return DelegateHandler.wrap(owner,(Statement)proxy,(ResultSet)result);
+        return result;
+    }
+}
@@ -0,0 +1,90 @@
+package kz.kkb.dbpool;
+
+import java.sql.Connection;
+import java.util.concurrent.TimeUnit;
+
+import static kz.kkb.dbpool.TestSupport.check;
+
+/**
+ * Снятая по createTimeout попытка не оставляет прерывания потоку создания,
+ * медленное закрытие коннекций не задерживает планировщик пула,
+ * а цикл поддержки не закрывает прогретые initialSize коннекции как лишние.
+ */
+public class ConnCreatorTest {
+
+    public static void main(String[] args) throws Exception {
+        try {
+            abandonedAttempt();
+            slowClose();
+            keepInitialSize();
+        } finally {
+            TestDriver.connectDelay=0;
+            TestDriver.closeDelay=0;
+        }
+        TestSupport.passed(ConnCreatorTest.class);
+    }
+
+    private static void abandonedAttempt() throws Exception {
+        TestDriver.connectDelay=1000;
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=1;
+        b.maxConn=2;
+        b.createParallelism=1;
+        b.createTimeout=200;
+        b.breakerThreshold=0;
+        final ConnectionPool pool=TestSupport.pool("abandon","abandon",b);
+        try {
+            check(TestSupport.await(new TestSupport.Condition() {
+                public boolean met() {
+                    return pool.poolData.hangCounter>0;
+                }
+            },3000),"slow attempt was not abandoned");
+            //следующая попытка в том же потоке не должна получить чужое прерывание
+            TestDriver.connectDelay=50;
+            check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not filled after abandoned attempt");
+            check(pool.poolData.getConsecutiveCreateFailures()==0,"creation still fails");
+        } finally {
+            pool.shutdown(0,TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static void slowClose() throws Exception {
+        TestDriver.connectDelay=0;
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=2;
+        b.maxConn=4;
+        b.connTimeout=200;
+        b.closeTimeout=100;
+        ConnectionPool pool=TestSupport.pool("slowClose","slowClose",b);
+        try {
+            check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+            TestDriver.closeDelay=2000;
+            PooledConnection first=(PooledConnection)pool.getConnection(1,TimeUnit.SECONDS);
+            Thread.sleep(300);
+            final PooledConnection second=(PooledConnection)pool.getConnection(1,TimeUnit.SECONDS);
+            //вторую отбирают через 200 ms после выдачи, пока закрытие первой еще висит
+            check(TestSupport.await(new TestSupport.Condition() {
+                public boolean met() {
+                    return second.isPhysicallyClosed();
+                }
+            },1000),"lease timer is blocked by slow close");
+            check(first.isPhysicallyClosed(),"first lease is not reclaimed");
+        } finally {
+            pool.shutdown(0,TimeUnit.MILLISECONDS);
+            TestDriver.closeDelay=0;
+        }
+    }
+
+    private static void keepInitialSize() throws Exception {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=2;
+        b.maxConn=20;
+        b.initialSize=10;
+        ConnectionPool pool=TestSupport.pool("initialSize","initialSize",b);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        TestSupport.equal(10,pool.poolData.getFreeCount(),"free after warmUp");
+        pool.poolData.connCreator.run();
+        TestSupport.equal(10,pool.poolData.getFreeCount(),"free after housekeeping");
+        pool.shutdown(0,TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,54 @@
+package kz.kkb.dbpool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static kz.kkb.dbpool.TestSupport.check;
+import static kz.kkb.dbpool.TestSupport.equal;
+
+/**
+ * Запись из нескольких потоков не теряет значений, процентили и слияние считают по всем корзинам.
+ */
+public class HistogramTest {
+
+    public static void main(String[] args) throws Exception {
+        concurrentRecord();
+        addAndReset();
+        TestSupport.passed(HistogramTest.class);
+    }
+
+    private static void concurrentRecord() throws Exception {
+        final Histogram h=new Histogram();
+        final int perThread=200000;
+        List<Thread> threads=new ArrayList<Thread>();
+        for (int i=0; i<4; i++) {
+            Thread t=new Thread(new Runnable() {
+                public void run() {
+                    //почти все в одну корзину, как у быстрых выдач, и редкий хвост
+                    for (int k=0; k<perThread; k++) h.record(k%100==99 ? 1000 : 3);
+                }
+            });
+            t.start();
+            threads.add(t);
+        }
+        for (int i=0; i<threads.size(); i++) threads.get(i).join();
+        equal(Long.valueOf(4L*perThread),Long.valueOf(h.getCount()),"count");
+        equal(Long.valueOf(3),Long.valueOf(h.getPercentile(50)),"p50");
+        check(h.getPercentile(99.5)>=1000 && h.getPercentile(99.5)<=1000*1.125,"p99.5: "+h.getPercentile(99.5));
+        equal(Long.valueOf(1000),Long.valueOf(h.getMax()),"max");
+    }
+
+    private static void addAndReset() {
+        Histogram a=new Histogram();
+        Histogram b=new Histogram();
+        for (int i=1; i<=100; i++) a.record(i);
+        for (int i=0; i<100; i++) b.record(5000);
+        a.add(b);
+        equal(Long.valueOf(200),Long.valueOf(a.getCount()),"count after add");
+        check(a.getPercentile(50)>=100 && a.getPercentile(50)<=100*1.125,"p50 after add: "+a.getPercentile(50));
+        check(a.getPercentile(75)>=5000 && a.getPercentile(75)<=5000*1.125,"p75 after add: "+a.getPercentile(75));
+        a.reset();
+        equal(Long.valueOf(0),Long.valueOf(a.getCount()),"count after reset");
+        equal(Long.valueOf(0),Long.valueOf(a.getPercentile(99)),"p99 after reset");
+    }
+}
@@ -0,0 +1,78 @@
+package kz.kkb.dbpool;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static kz.kkb.dbpool.TestSupport.check;
+import static kz.kkb.dbpool.TestSupport.equal;
+
+/**
+ * Старая запись колеса, сработавшая на новой выдаче той же коннекции, не отбирает ее:
+ * ни после обычного возврата и повторной выдачи, ни в момент самой выдачи.
+ */
+public class LeaseWheelTest {
+
+    public static void main(String[] args) throws Exception {
+        staleEntry();
+        staleEntryDuringLease();
+        TestSupport.passed(LeaseWheelTest.class);
+    }
+
+    private static void staleEntry() throws Exception {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=1;
+        b.maxConn=1;
+        b.connTimeout=300;
+        ConnectionPool pool=TestSupport.pool("staleEntry","staleEntry",b);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        PooledConnection first=(PooledConnection)pool.getConnection(5,TimeUnit.SECONDS);
+        first.close();
+        Thread.sleep(200);
+        //та же коннекция, запись колеса еще от первой выдачи
+        PooledConnection second=(PooledConnection)pool.getConnection(5,TimeUnit.SECONDS);
+        check(first==second,"pool of one connection gave another one");
+        Thread.sleep(250);//срок первой выдачи прошел, второй - нет
+        check(second.isLeased(),"new lease was reclaimed by the entry of the previous one");
+        equal(Long.valueOf(0),Long.valueOf(pool.poolData.metrics.leaseTimeouts.sum()),"lease timeouts");
+        second.close();
+        pool.shutdown(0,TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Колесо срабатывает на коннекции без перерыва, пока ее выдают после долгого простоя:
+     * увидев LEASED, оно должно видеть срок новой выдачи, а не прошлой
+     */
+    private static void staleEntryDuringLease() throws Exception {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=1;
+        b.maxConn=1;
+        b.connTimeout=1000;
+        final ConnectionPool pool=TestSupport.pool("staleRace","staleRace",b);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        final PooledConnection conn=(PooledConnection)pool.getConnection(5,TimeUnit.SECONDS);
+        check(conn.unlease(),"connection is not leased");
+        final AtomicBoolean stop=new AtomicBoolean();
+        Thread wheel=new Thread(new Runnable() {
+            public void run() {
+                while (!stop.get()) {
+                    conn.inWheel.set(false);
+                    pool.poolData.leaseWheel.leased(conn);//срабатывает сразу, как для старой записи
+                }
+            }
+        });
+        wheel.start();
+        try {
+            for (int i=0; i<1000000; i++) {
+                conn.leaseTime=System.currentTimeMillis()-60000;//прошлая выдача - минуту назад
+                check(conn.lease(null,null),"connection is closed before lease "+i);
+                check(conn.isLeased(),"lease "+i+" was reclaimed as if it were the previous one");
+                check(conn.unlease(),"lease "+i+" was reclaimed before return");
+            }
+        } finally {
+            stop.set(true);
+            wheel.join();
+        }
+        equal(Long.valueOf(0),Long.valueOf(pool.poolData.metrics.leaseTimeouts.sum()),"lease timeouts");
+        pool.shutdown(0,TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,175 @@
+package kz.kkb.dbpool;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.management.Attribute;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static kz.kkb.dbpool.TestSupport.check;
+import static kz.kkb.dbpool.TestSupport.equal;
+
+/**
+ * reconfigure() заменяет параметры одним набором: читатели не видят смеси старых и новых значений,
+ * неверный набор отвергается целиком, уменьшение и увеличение maxConn применяются сразу,
+ * одновременные setter-ы JMX не затирают изменения друг друга.
+ */
+public class PoolConfigTest {
+
+    public static void main(String[] args) throws Exception {
+        ConnectionPool pool=TestSupport.pool("config","config",2,10);
+        try {
+            atomicSwap(pool);
+            resize(pool);
+            jmx(pool);
+            concurrentJmx(pool);
+        } finally {
+            pool.shutdown(0,TimeUnit.MILLISECONDS);
+        }
+        TestSupport.passed(PoolConfigTest.class);
+    }
+
+    private static void atomicSwap(final ConnectionPool pool) throws Exception {
+        PoolConfig.Builder b=pool.getConfig().toBuilder();
+        b.minSpareConn=1;
+        b.maxConn=2;
+        b.connTimeout=1000;
+        final PoolConfig small=b.build();
+        b.minSpareConn=8;
+        b.maxConn=10;
+        b.connTimeout=2000;
+        final PoolConfig large=b.build();
+        final PoolConfig initial=pool.getConfig();
+        final long until=System.currentTimeMillis()+500;
+        final AtomicReference<String> error=new AtomicReference<String>();
+        List<Thread> readers=new ArrayList<Thread>();
+        for (int i=0; i<2; i++) {
+            Thread t=new Thread(new Runnable() {
+                public void run() {
+                    while (System.currentTimeMillis()<until && error.get()==null) {
+                        //только один из установленных наборов, а не собранный из полей на ходу
+                        PoolConfig c=pool.getConfig();
+                        if (c!=initial && c!=small && c!=large) error.set("mixed config "+c);
+                    }
+                }
+            });
+            t.start();
+            readers.add(t);
+        }
+        while (System.currentTimeMillis()<until) {
+            pool.reconfigure(small);
+            pool.reconfigure(large);
+        }
+        for (int i=0; i<readers.size(); i++) readers.get(i).join();
+        check(error.get()==null,String.valueOf(error.get()));
+        check(pool.getConfig()==large,"reconfigure did not install the given config");
+    }
+
+    private static void resize(ConnectionPool pool) throws Exception {
+        final PoolData pd=pool.poolData;
+        PoolConfig.Builder b=pool.getConfig().toBuilder();
+        b.minSpareConn=4;
+        b.maxConn=10;
+        pool.reconfigure(b.build());
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        Connection leased=pool.getConnection(5,TimeUnit.SECONDS);
+
+        b.minSpareConn=1;
+        b.maxConn=3;
+        pool.reconfigure(b.build());
+        //свободные сверх maxConn закрываются сразу (физически - в потоке closer), выданная - при возврате
+        check(pd.getFreeCount()<=3,"free connections over maxConn are left in pool: "+pd.getFreeCount());
+        check(TestSupport.await(new TestSupport.Condition() {
+            public boolean met() {
+                return pd.getTotalCount()<=3+1;
+            }
+        },2000),"free connections over maxConn are not closed: "+pd.getTotalCount());
+        leased.close();
+        check(TestSupport.await(new TestSupport.Condition() {
+            public boolean met() {
+                return pd.getTotalCount()<=3 && pd.getPendingCount()==0;
+            }
+        },2000),"pool did not shrink to maxConn: "+pd.getTotalCount());
+
+        b.minSpareConn=6;
+        b.maxConn=8;
+        pool.reconfigure(b.build());
+        check(TestSupport.await(new TestSupport.Condition() {
+            public boolean met() {
+                return pd.getFreeCount()>=6;
+            }
+        },2000),"pool did not grow to new spare target: "+pd.getFreeCount());
+        check(pd.getTotalCount()<=8,"total over maxConn: "+pd.getTotalCount());
+    }
+
+    private static void jmx(ConnectionPool pool) throws Exception {
+        MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+        ObjectName name=new ObjectName("kz.kkb.dbpool:type=PoolConfig,name="+ObjectName.quote("config"));
+        server.setAttribute(name,new Attribute("MaxConn",12));
+        server.setAttribute(name,new Attribute("BreakerThreshold",7));
+        server.setAttribute(name,new Attribute("DebugMode",PoolData.DEBUG_FULL));
+        server.setAttribute(name,new Attribute("SizerHeadroom",0.5));
+        PoolConfig c=pool.getConfig();
+        equal(12,c.maxConn,"maxConn via JMX");
+        equal(7,c.breakerThreshold,"breakerThreshold via JMX");
+        equal(PoolData.DEBUG_FULL,c.debugMode,"debugMode via JMX");
+        equal(0.5,c.sizerHeadroom,"sizerHeadroom via JMX");
+
+        try {
+            server.setAttribute(name,new Attribute("MinSpareConn",13));
+            throw new AssertionError("minSpareConn>maxConn accepted");
+        } catch (AssertionError e) {
+            throw e;
+        } catch (Exception e) {
+            //ожидаемо: IllegalArgumentException из Builder.build()
+        }
+        check(pool.getConfig()==c,"rejected setting changed the config");
+    }
+
+    private static void concurrentJmx(final ConnectionPool pool) throws Exception {
+        final MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+        final ObjectName name=new ObjectName("kz.kkb.dbpool:type=PoolConfig,name="+ObjectName.quote("config"));
+        final int n=2000;
+        final AtomicReference<String> error=new AtomicReference<String>();
+        PoolConfig.Builder b=pool.getConfig().toBuilder();
+        b.breakerThreshold=1;
+        b.debugSampleRate=1;
+        pool.reconfigure(b.build());
+        //каждый поток только увеличивает свой параметр: уменьшение - это затертое изменение
+        String[] attributes={"BreakerThreshold","DebugSampleRate"};
+        List<Thread> writers=new ArrayList<Thread>();
+        for (int i=0; i<attributes.length; i++) {
+            final String attribute=attributes[i];
+            Thread t=new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for (int v=2; v<=n && error.get()==null; v++) server.setAttribute(name,new Attribute(attribute,v));
+                    } catch (Exception e) {
+                        error.set(attribute+": "+e);
+                    }
+                }
+            });
+            t.start();
+            writers.add(t);
+        }
+        int threshold=1;
+        int sampleRate=1;
+        while (writers.get(0).isAlive() || writers.get(1).isAlive()) {
+            PoolConfig c=pool.getConfig();
+            if (c.breakerThreshold<threshold || c.debugSampleRate<sampleRate) {
+                error.compareAndSet(null,"lost update: breakerThreshold "+threshold+" -> "+c.breakerThreshold
+                        +", debugSampleRate "+sampleRate+" -> "+c.debugSampleRate);
+            }
+            threshold=c.breakerThreshold;
+            sampleRate=c.debugSampleRate;
+        }
+        for (int i=0; i<writers.size(); i++) writers.get(i).join();
+        check(error.get()==null,String.valueOf(error.get()));
+        equal(n,pool.getConfig().breakerThreshold,"breakerThreshold after concurrent sets");
+        equal(n,pool.getConfig().debugSampleRate,"debugSampleRate after concurrent sets");
+    }
+}
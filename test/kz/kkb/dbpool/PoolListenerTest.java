@@ -0,0 +1,113 @@
+package kz.kkb.dbpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static kz.kkb.dbpool.TestSupport.check;
+import static kz.kkb.dbpool.TestSupport.equal;
+
+/**
+ * connectionClosed() приходит для каждой коннекции, закрытой пулом: не прошедшей проверку,
+ * выброшенной circuit breaker, отобранной по connTimeout и закрытой при shutdown().
+ */
+public class PoolListenerTest {
+
+    public static void main(String[] args) throws Exception {
+        try {
+            validationAndBreaker();
+        } finally {
+            TestDriver.down.remove("listenerDown");
+        }
+        breakerPurge();
+        reclaimAndShutdown();
+        TestSupport.passed(PoolListenerTest.class);
+    }
+
+    private static void validationAndBreaker() throws Exception {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=4;
+        b.maxConn=4;
+        b.validationInterval=0;
+        b.breakerThreshold=2;
+        ConnectionPool pool=TestSupport.pool("listenerDown","listenerDown",b);
+        final Closes closes=listen(pool);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        TestDriver.down.add("listenerDown");
+        try {
+            Connection con=pool.getConnection(200,TimeUnit.MILLISECONDS);
+            con.close();
+            throw new AssertionError("connection leased from a database that is down");
+        } catch (SQLException expected) {
+        }
+        //breaker открывается после 2 ошибок и выбрасывает остальные свободные в потоке создателя,
+        //заемщик тем временем может успеть проверить их сам
+        check(closes.count(PoolListener.VALIDATION_FAILED)>=2,"closed after failed validation: "+closes.count(PoolListener.VALIDATION_FAILED));
+        check(TestSupport.await(new TestSupport.Condition() {
+            public boolean met() {
+                return closes.count(PoolListener.VALIDATION_FAILED)+closes.count(PoolListener.BREAKER_OPEN)==4;
+            }
+        },5000),"closes reported: "+closes.reasons);
+        pool.shutdown(0,TimeUnit.MILLISECONDS);
+    }
+
+    private static void breakerPurge() throws Exception {
+        ConnectionPool pool=TestSupport.pool("listenerPurge","listenerPurge",3,3);
+        final Closes closes=listen(pool);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        pool.poolData.connCreator.purgeFree();
+        check(TestSupport.await(new TestSupport.Condition() {
+            public boolean met() {
+                return closes.count(PoolListener.BREAKER_OPEN)==3;
+            }
+        },5000),"closed by circuit breaker: "+closes.reasons);
+        pool.shutdown(0,TimeUnit.MILLISECONDS);
+    }
+
+    private static void reclaimAndShutdown() throws Exception {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=3;
+        b.maxConn=3;
+        b.connTimeout=200;
+        ConnectionPool pool=TestSupport.pool("listenerLease","listenerLease",b);
+        final Closes closes=listen(pool);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        pool.getConnection(5,TimeUnit.SECONDS);//не возвращаем
+        check(TestSupport.await(new TestSupport.Condition() {
+            public boolean met() {
+                return closes.count(PoolListener.RECLAIMED)==1;
+            }
+        },5000),"reclaimed connection is not reported");
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not refilled");
+        int total=pool.poolData.getTotalCount();
+        check(pool.shutdown(0,TimeUnit.MILLISECONDS),"shutdown reported unclosed connections");
+        equal(total,closes.count(PoolListener.SHUTDOWN),"closed on shutdown");
+    }
+
+    private static Closes listen(ConnectionPool pool) {
+        Closes closes=new Closes(pool.poolData);
+        pool.poolData.listener=closes;
+        return closes;
+    }
+
+    private static class Closes extends LogPoolListener {
+        private final List<String> reasons=new CopyOnWriteArrayList<String>();
+
+        Closes(PoolData poolData) {
+            super(poolData);
+        }
+
+        public void connectionClosed(PooledConnection conn, String reason) {
+            reasons.add(reason);
+            super.connectionClosed(conn,reason);
+        }
+
+        int count(String reason) {
+            int n=0;
+            for (String r : reasons) if (r.equals(reason)) n++;
+            return n;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package kz.kkb.dbpool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import static kz.kkb.dbpool.TestSupport.check;
+import static kz.kkb.dbpool.TestSupport.equal;
+
+/**
+ * Упавшая реплика исключается из чтения и возвращается после восстановления базы;
+ * timeout выдачи общий на все попытки. Проба реплики не превышает maxConn,
+ * а зависшая проба одной реплики не задерживает проверку остальных.
+ */
+public class RoutingPoolTest {
+
+    public static void main(String[] args) throws Exception {
+        replicaRecovery();
+        singleDeadline();
+        try {
+            hungReplica();
+        } finally {
+            TestDriver.hung.remove("hungReplica");
+            TestDriver.down.remove("slowReplica");
+        }
+        probeWithinMaxConn();
+        TestSupport.passed(RoutingPoolTest.class);
+    }
+
+    private static void replicaRecovery() throws Exception {
+        TestDriver.down.add("replica");
+        ConnectionPool primary=TestSupport.pool("primary","primary",1,5);
+        final RoutingPool router=new RoutingPool("routing",primary,TestSupport.pool("replica","replica",1,5));
+        router.probeInterval=50;
+        //реплика тратит весь timeout запроса, primary остается выдать свободную без ожидания
+        check(primary.warmUp(5,TimeUnit.SECONDS),"primary is not warmed up");
+        try {
+            //неудачные выдачи из реплики запускают попытки создания, пока она не будет отмечена упавшей
+            Connection c;
+            long deadline=System.currentTimeMillis()+5000;
+            while (router.getUpReplicaCount()>0) {
+                check(System.currentTimeMillis()<deadline,"down replica is not excluded");
+                router.getConnection(RoutingPool.Access.READ_ONLY,100,TimeUnit.MILLISECONDS).close();
+            }
+            c=router.getConnection(RoutingPool.Access.READ_ONLY,2,TimeUnit.SECONDS);
+            equal("primary",database(c),"READ_ONLY while replica is down");
+            c.close();
+
+            TestDriver.down.remove("replica");
+            check(TestSupport.await(new TestSupport.Condition() {
+                public boolean met() {
+                    return router.getUpReplicaCount()==1;
+                }
+            },router.probeInterval+5000),"replica is not back after recovery");//первая пауза проверки - 5000 по умолчанию
+            c=router.getConnection(RoutingPool.Access.READ_ONLY,2,TimeUnit.SECONDS);
+            equal("replica",database(c),"READ_ONLY after recovery");
+            c.close();
+        } finally {
+            router.destroy();
+        }
+    }
+
+    private static void singleDeadline() throws Exception {
+        ConnectionPool primary=TestSupport.pool("primary2","primary2",0,1);
+        ConnectionPool replica1=TestSupport.pool("replica1","replica1",0,1);
+        ConnectionPool replica2=TestSupport.pool("replica2","replica2",0,1);
+        RoutingPool router=new RoutingPool("routing2",primary,replica1,replica2);
+        Connection[] held={primary.getConnection(2,TimeUnit.SECONDS),replica1.getConnection(2,TimeUnit.SECONDS),
+                replica2.getConnection(2,TimeUnit.SECONDS)};
+        try {
+            long start=System.nanoTime();
+            try {
+                router.getConnection(RoutingPool.Access.READ_ONLY,300,TimeUnit.MILLISECONDS).close();
+                throw new AssertionError("exhausted pools leased a connection");
+            } catch (SQLException e) {
+                //ожидаемо
+            }
+            long millis=TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start);
+            check(millis>=250 && millis<600,"timeout is not shared by attempts: "+millis+" ms");
+        } finally {
+            for (int i=0; i<held.length; i++) held[i].close();
+            router.destroy();
+        }
+    }
+
+    private static void hungReplica() throws Exception {
+        ConnectionPool primary=TestSupport.pool("primary3","primary3",1,5);
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=0;
+        b.maxConn=2;
+        b.createTimeout=2000;
+        ConnectionPool hung=TestSupport.pool("hungReplica","hungReplica",b);
+        ConnectionPool slow=TestSupport.pool("slowReplica","slowReplica",b);
+        final RoutingPool router=new RoutingPool("routing3",primary,hung,slow);
+        router.probeInterval=50;
+        try {
+            TestDriver.hung.add("hungReplica");
+            TestDriver.down.add("slowReplica");
+            //обе реплики упали, попытки открыть коннекцию к зависшей висят до createTimeout
+            for (int i=0; i<router.failureThreshold; i++) {
+                hung.poolData.createResult(false);
+                slow.poolData.createResult(false);
+            }
+            check(TestSupport.await(new TestSupport.Condition() {
+                public boolean met() {
+                    return router.getUpReplicaCount()==0;
+                }
+            },10000),"replicas are not marked down");
+            TestDriver.down.remove("slowReplica");
+            //первая пауза проверки - 5000 по умолчанию, зависшая попытка висела бы 60 s
+            check(TestSupport.await(new TestSupport.Condition() {
+                public boolean met() {
+                    return router.getUpReplicaCount()==1;
+                }
+            },router.probeInterval+7000),"probe of hung replica blocks the other replica");
+            check(hung.poolData.getPendingCount()<=1,"probes of hung replica pile up: "+hung.poolData.getPendingCount());
+        } finally {
+            router.destroy();
+        }
+    }
+
+    private static void probeWithinMaxConn() throws Exception {
+        ConnectionPool primary=TestSupport.pool("primary4","primary4",1,1);
+        ConnectionPool replica=TestSupport.pool("fullReplica","fullReplica",0,1);
+        check(primary.warmUp(5,TimeUnit.SECONDS),"primary is not warmed up");
+        Connection held=replica.getConnection(5,TimeUnit.SECONDS);
+        final RoutingPool router=new RoutingPool("routing4",primary,replica);
+        router.probeInterval=20;
+        try {
+            for (int i=0; i<router.failureThreshold; i++) replica.poolData.createResult(false);
+            int opened=TestDriver.opened.get();
+            //проверки сразу, не дожидаясь первой паузы планировщика: отметка и проба
+            router.run();
+            router.run();
+            Thread.sleep(300);
+            equal(Integer.valueOf(opened),Integer.valueOf(TestDriver.opened.get()),"connections opened by probe over maxConn");
+            equal(Integer.valueOf(1),Integer.valueOf(replica.poolData.getTotalCount()),"replica connections");
+        } finally {
+            held.close();
+            router.destroy();
+        }
+    }
+
+    private static String database(Connection c) {
+        String s=((PooledConnection)c).conn.toString();
+        return s.substring(s.indexOf('[')+1,s.indexOf(']'));
+    }
+}
@@ -0,0 +1,77 @@
+package kz.kkb.dbpool;
+
+import java.util.concurrent.TimeUnit;
+
+import static kz.kkb.dbpool.TestSupport.check;
+import static kz.kkb.dbpool.TestSupport.equal;
+
+/**
+ * shutdown() закрывает коннекции не больше чем closeParallelism потоками
+ * и не ждет зависших закрытий дольше closeTimeout.
+ */
+public class ShutdownTest {
+
+    public static void main(String[] args) throws Exception {
+        try {
+            boundedClose();
+            closeTimeout();
+        } finally {
+            TestDriver.closeDelay=0;
+        }
+        TestSupport.passed(ShutdownTest.class);
+    }
+
+    private static void boundedClose() throws Exception {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=12;
+        b.maxConn=12;
+        b.closeParallelism=3;
+        b.closeTimeout=5000;
+        ConnectionPool pool=TestSupport.pool("shutdown","shutdown",b);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        TestDriver.closeDelay=200;
+        int closedBefore=TestDriver.closed.get();
+        final int[] maxThreads={0};
+        Thread watcher=new Thread(new Runnable() {
+            public void run() {
+                while (!Thread.currentThread().isInterrupted()) {
+                    maxThreads[0]=Math.max(maxThreads[0],closerThreads("ConnectionPool.shutdown.closer-"));
+                    Thread.yield();
+                }
+            }
+        });
+        watcher.start();
+        long start=System.currentTimeMillis();
+        boolean clean=pool.shutdown(0,TimeUnit.MILLISECONDS);
+        long millis=System.currentTimeMillis()-start;
+        watcher.interrupt();
+        watcher.join();
+        check(clean,"shutdown reported unclosed connections");
+        equal(12,TestDriver.closed.get()-closedBefore,"closed connections");
+        check(maxThreads[0]>0 && maxThreads[0]<=3,"closer threads: "+maxThreads[0]);
+        //12 закрытий по 200 ms в 3 потока - около 800 ms
+        check(millis>=700 && millis<2000,"connections were not closed by 3 threads in parallel: "+millis+" ms");
+    }
+
+    private static void closeTimeout() throws Exception {
+        TestDriver.closeDelay=0;
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=4;
+        b.maxConn=4;
+        b.closeTimeout=300;
+        ConnectionPool pool=TestSupport.pool("hungClose","hungClose",b);
+        check(pool.warmUp(5,TimeUnit.SECONDS),"pool is not warmed up");
+        TestDriver.closeDelay=3000;
+        long start=System.currentTimeMillis();
+        boolean clean=pool.shutdown(0,TimeUnit.MILLISECONDS);
+        long millis=System.currentTimeMillis()-start;
+        check(!clean,"hung close reported as clean");
+        check(millis<1500,"shutdown waited for hung close: "+millis+" ms");
+    }
+
+    private static int closerThreads(String prefix) {
+        int n=0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) if (t.getName().startsWith(prefix)) n++;
+        return n;
+    }
+}
@@ -0,0 +1,88 @@
+package kz.kkb.dbpool;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.concurrent.TimeUnit;
+
+import static kz.kkb.dbpool.TestSupport.check;
+import static kz.kkb.dbpool.TestSupport.equal;
+
+/**
+ * Statement из кеша возвращается следующему заемщику в исходном состоянии,
+ * а statement, который не удалось сбросить, закрывается и в кеш не попадает.
+ */
+public class StatementCacheTest {
+
+    private static final String SQL="SELECT X FROM T WHERE ID=?";
+
+    public static void main(String[] args) throws Exception {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=1;
+        b.maxConn=2;
+        b.stmtCacheSize=4;
+        ConnectionPool pool=TestSupport.pool("stmtCache","stmtCache",b);
+        try {
+            resetOnRelease(pool);
+            evictOnResetFailure(pool);
+        } finally {
+            pool.shutdown(0,TimeUnit.MILLISECONDS);
+        }
+        TestSupport.passed(StatementCacheTest.class);
+    }
+
+    private static void resetOnRelease(ConnectionPool pool) throws Exception {
+        TestDriver.statements.clear();
+        Connection c=pool.getConnection(5,TimeUnit.SECONDS);
+        try {
+            PreparedStatement ps=c.prepareStatement(SQL);
+            ps.setMaxRows(5);
+            ps.setQueryTimeout(7);
+            ps.setFetchSize(500);
+            ps.setFetchDirection(ResultSet.FETCH_REVERSE);
+            ps.addBatch();
+            ps.addBatch();
+            ResultSet rs=ps.executeQuery();
+            check(rs!=null,"executeQuery returned null");
+            ps.close();
+
+            equal(1,TestDriver.statements.size(),"prepared statements");
+            TestDriver.Stmt st=TestDriver.statements.get(0);
+            check(!st.isClosed,"cached statement closed on release");
+            check(st.resultSet.isClosed,"result set left open in cache");
+            equal(0,st.batch,"batch");
+            equal(0,st.maxRows,"maxRows");
+            equal(0,st.queryTimeout,"queryTimeout");
+            equal(TestDriver.DEFAULT_FETCH_SIZE,st.fetchSize,"fetchSize");
+            equal(ResultSet.FETCH_FORWARD,st.fetchDirection,"fetchDirection");
+
+            PreparedStatement again=c.prepareStatement(SQL);
+            equal(1,TestDriver.statements.size(),"statement not taken from cache");
+            equal(0,again.getMaxRows(),"maxRows seen by next borrower");
+            again.close();
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void evictOnResetFailure(ConnectionPool pool) throws Exception {
+        TestDriver.statements.clear();
+        Connection c=pool.getConnection(5,TimeUnit.SECONDS);
+        try {
+            PreparedStatement ps=c.prepareStatement(SQL+" AND 1=1");
+            TestDriver.Stmt st=TestDriver.statements.get(0);
+            st.failClearBatch=true;
+            ps.setMaxRows(5);
+            ps.close();
+            check(st.isClosed,"statement that failed reset was not closed");
+
+            PreparedStatement next=c.prepareStatement(SQL+" AND 1=1");
+            equal(2,TestDriver.statements.size(),"failed statement stayed in cache");
+            check(next.getMaxRows()==0,"new statement has maxRows");
+            next.close();
+            check(!TestDriver.statements.get(1).isClosed,"new statement was not cached");
+        } finally {
+            c.close();
+        }
+    }
+}
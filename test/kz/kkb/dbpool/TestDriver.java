@@ -0,0 +1,220 @@
+package kz.kkb.dbpool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * JDBC драйвер без базы данных для тестов пула.
+ * URL: jdbc:test:{имя базы}. База из down не принимает коннекций, а открытые коннекции к ней не проходят тест.
+ * Statement-ы хранят свои настройки (maxRows, queryTimeout, fetch size, batch, открытый ResultSet),
+ * все созданные statement-ы доступны в statements. connectDelay и closeDelay имитируют медленную сеть.
+ */
+public class TestDriver implements Driver {
+
+    public static final String PREFIX="jdbc:test:";
+    public static final int DEFAULT_FETCH_SIZE=10;
+
+    /** базы, которые сейчас недоступны */
+    public static final Set<String> down=ConcurrentHashMap.newKeySet();
+    public static final Set<String> hung=ConcurrentHashMap.newKeySet();//connect() висит до прерывания
+    public static final AtomicInteger opened=new AtomicInteger();
+    public static final AtomicInteger closed=new AtomicInteger();
+    public static volatile long connectDelay;//ms, прерываемо
+    public static volatile long closeDelay;//ms
+    public static final List<Stmt> statements=new CopyOnWriteArrayList<Stmt>();
+
+    static {
+        try {
+            DriverManager.registerDriver(new TestDriver());
+        } catch (SQLException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public Connection connect(String url, Properties info) throws SQLException {
+        if (!acceptsURL(url)) return null;
+        String db=url.substring(PREFIX.length());
+        if (down.contains(db)) throw new SQLException("Database "+db+" is down");
+        if (hung.contains(db)) sleep(60000,true);
+        sleep(connectDelay,true);
+        opened.incrementAndGet();
+        return (Connection)Proxy.newProxyInstance(TestDriver.class.getClassLoader(),
+                new Class<?>[]{Connection.class},new Conn(db));
+    }
+
+    public boolean acceptsURL(String url) {
+        return url!=null && url.startsWith(PREFIX);
+    }
+
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    private static void sleep(long millis, boolean interruptible) throws SQLException {
+        if (millis<=0) return;
+        long deadline=System.currentTimeMillis()+millis;
+        long left;
+        while ((left=deadline-System.currentTimeMillis())>0) {
+            try {
+                Thread.sleep(left);
+            } catch (InterruptedException e) {
+                if (interruptible) throw new SQLException("Interrupted",e);
+            }
+        }
+    }
+
+    static Object empty(Class<?> type) {
+        if (type==boolean.class) return Boolean.FALSE;
+        if (type==int.class) return Integer.valueOf(0);
+        if (type==long.class) return Long.valueOf(0);
+        if (type==short.class) return Short.valueOf((short)0);
+        if (type==byte.class) return Byte.valueOf((byte)0);
+        if (type==double.class) return Double.valueOf(0);
+        if (type==float.class) return Float.valueOf(0);
+        return null;
+    }
+
+    private static class Conn implements InvocationHandler {
+        private final String db;
+        private volatile boolean isClosed;
+        private boolean autoCommit=true;
+
+        Conn(String db) {
+            this.db=db;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name=method.getName();
+            if ("close".equals(name)) {
+                if (!isClosed) {
+                    isClosed=true;
+                    sleep(closeDelay,false);
+                    closed.incrementAndGet();
+                }
+                return null;
+            }
+            if ("isClosed".equals(name)) return Boolean.valueOf(isClosed);
+            if ("isValid".equals(name)) return Boolean.valueOf(!isClosed && !down.contains(db));
+            if ("equals".equals(name)) return Boolean.valueOf(proxy==args[0]);
+            if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+            if ("toString".equals(name)) return "TestConnection["+db+"]@"+Integer.toHexString(System.identityHashCode(proxy));
+            if (isClosed) throw new SQLException("Connection is closed");
+            if ("getAutoCommit".equals(name)) return Boolean.valueOf(autoCommit);
+            if ("setAutoCommit".equals(name)) {
+                autoCommit=((Boolean)args[0]).booleanValue();
+                return null;
+            }
+            if ("getTransactionIsolation".equals(name)) return Integer.valueOf(Connection.TRANSACTION_READ_COMMITTED);
+            if ("createStatement".equals(name) || "prepareStatement".equals(name) || "prepareCall".equals(name)) {
+                Stmt st=new Stmt();
+                statements.add(st);
+                st.proxy=(PreparedStatement)Proxy.newProxyInstance(TestDriver.class.getClassLoader(),
+                        new Class<?>[]{java.sql.CallableStatement.class},st);
+                return st.proxy;
+            }
+            return empty(method.getReturnType());
+        }
+    }
+
+    /**
+     * Statement with its settings
+     */
+    public static class Stmt implements InvocationHandler {
+        public PreparedStatement proxy;
+        public volatile boolean isClosed;
+        public int maxRows;
+        public int queryTimeout;
+        public int fetchSize=DEFAULT_FETCH_SIZE;
+        public int fetchDirection=ResultSet.FETCH_FORWARD;
+        public int batch;
+        public volatile boolean failClearBatch;//clearBatch() бросает SQLException
+        public Rs resultSet;//текущий ResultSet
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name=method.getName();
+            if ("close".equals(name)) {
+                isClosed=true;
+                if (resultSet!=null) resultSet.isClosed=true;
+                return null;
+            }
+            if ("isClosed".equals(name)) return Boolean.valueOf(isClosed);
+            if ("equals".equals(name)) return Boolean.valueOf(proxy==args[0]);
+            if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+            if ("toString".equals(name)) return "TestStatement";
+            if (isClosed) throw new SQLException("Statement is closed");
+            if ("setMaxRows".equals(name)) maxRows=((Integer)args[0]).intValue();
+            else if ("getMaxRows".equals(name)) return Integer.valueOf(maxRows);
+            else if ("setQueryTimeout".equals(name)) queryTimeout=((Integer)args[0]).intValue();
+            else if ("getQueryTimeout".equals(name)) return Integer.valueOf(queryTimeout);
+            else if ("setFetchSize".equals(name)) fetchSize=((Integer)args[0]).intValue();
+            else if ("getFetchSize".equals(name)) return Integer.valueOf(fetchSize);
+            else if ("setFetchDirection".equals(name)) fetchDirection=((Integer)args[0]).intValue();
+            else if ("getFetchDirection".equals(name)) return Integer.valueOf(fetchDirection);
+            else if ("addBatch".equals(name)) batch++;
+            else if ("clearBatch".equals(name)) {
+                if (failClearBatch) throw new SQLException("clearBatch failed");
+                batch=0;
+            }
+            else if ("getResultSet".equals(name)) return resultSet==null ? null : resultSet.proxy;
+            else if ("executeQuery".equals(name) || "execute".equals(name)) {
+                if (resultSet!=null) resultSet.isClosed=true;
+                resultSet=new Rs();
+                resultSet.proxy=(ResultSet)Proxy.newProxyInstance(TestDriver.class.getClassLoader(),
+                        new Class<?>[]{ResultSet.class},resultSet);
+                return "execute".equals(name) ? Boolean.TRUE : resultSet.proxy;
+            }
+            return empty(method.getReturnType());
+        }
+    }
+
+    /**
+     * Result set, open until closed or statement re-executed
+     */
+    public static class Rs implements InvocationHandler {
+        public ResultSet proxy;
+        public volatile boolean isClosed;
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name=method.getName();
+            if ("close".equals(name)) {
+                isClosed=true;
+                return null;
+            }
+            if ("isClosed".equals(name)) return Boolean.valueOf(isClosed);
+            if ("equals".equals(name)) return Boolean.valueOf(proxy==args[0]);
+            if ("hashCode".equals(name)) return Integer.valueOf(System.identityHashCode(proxy));
+            return empty(method.getReturnType());
+        }
+    }
+}
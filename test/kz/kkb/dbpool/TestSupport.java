@@ -0,0 +1,54 @@
+package kz.kkb.dbpool;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Общее для тестов пула. Тест - класс с main(): проверки бросают AssertionError,
+ * успешный тест печатает "OK имя". Запуск всех тестов - lib/mktest.
+ */
+public class TestSupport {
+
+    static void check(boolean condition, String message) {
+        if (!condition) throw new AssertionError(message);
+    }
+
+    static void equal(Object expected, Object actual, String message) {
+        if (expected==null ? actual!=null : !expected.equals(actual))
+            throw new AssertionError(message+": expected "+expected+", got "+actual);
+    }
+
+    /**
+     * Pool over TestDriver database db
+     */
+    static ConnectionPool pool(String name, String db, int minSpare, int max) {
+        PoolConfig.Builder b=new PoolConfig.Builder();
+        b.minSpareConn=minSpare;
+        b.maxConn=max;
+        return pool(name,db,b);
+    }
+
+    static ConnectionPool pool(String name, String db, PoolConfig.Builder config) {
+        return new ConnectionPool(name,TestDriver.class.getName(),TestDriver.PREFIX+db,"u","p",config.build());
+    }
+
+    /**
+     * Wait until condition is true
+     * @return false on timeout
+     */
+    static boolean await(Condition c, long millis) throws Exception {
+        long deadline=System.nanoTime()+TimeUnit.MILLISECONDS.toNanos(millis);
+        while (!c.met()) {
+            if (System.nanoTime()-deadline>=0) return false;
+            Thread.sleep(10);
+        }
+        return true;
+    }
+
+    interface Condition {
+        boolean met() throws Exception;
+    }
+
+    static void passed(Class<?> test) {
+        System.out.println("OK "+test.getSimpleName());
+    }
+}